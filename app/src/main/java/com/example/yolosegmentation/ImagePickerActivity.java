@@ -16,37 +16,50 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 
 import com.example.yolosegmentation.databinding.ActivityImagePickerBinding;
+import com.example.yolosegmentation.models.ModelAutotuner;
+import com.example.yolosegmentation.models.ModelCache;
+import com.example.yolosegmentation.models.ModelLoader;
+import com.example.yolosegmentation.models.PostProcessing;
+import com.example.yolosegmentation.models.TiledInference;
 import com.example.yolosegmentation.models.Yolo;
 import com.example.yolosegmentation.models.Yolov8Seg;
+import com.example.yolosegmentation.utils.BitmapPool;
+import com.example.yolosegmentation.utils.ResultCache;
 import com.example.yolosegmentation.utils.utils;
 import com.example.yolosegmentation.view.PolygonView;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import org.opencv.android.OpenCVLoader;
 
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class ImagePickerActivity extends AppCompatActivity {
     private static final int PICK_IMAGE = 1;
     private Context context;
     private PolygonView polygonView;
 
-    private Yolo yolo_model;
+    private static final String MODEL_KEY = ModelCache.key("model2.tflite", true, 4, false, true, "labels2.txt", 0);
+    private CompletableFuture<Yolo> yolo_model;
+    //interpreters used in parallel by the tiled mode, created on the first large image
+    private static final int TILE_POOL_SIZE = 2;
+    private volatile TiledInference tiled_inference;
+    //a decode is kept at least this large when it is going to be tiled
+    private static final int TILED_DECODE_SIZE = 2048;
+    //image on screen, from BitmapPool, only shown once its detection is over
+    private Bitmap shown_bitmap;
     private static final int REQUEST_CODE_PERMISSIONS = 10;
     private static final String[] REQUIRED_PERMISSIONS = {android.Manifest.permission.CAMERA};
 
     private ExecutorService cameraExecutor;
     private ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
 
-    private ExecutorService executor;
-
-    private boolean isDetecting = false;
-    List<Map<String, Object>> detections;
     private static ArrayList<Map<String, Object>> empty = new ArrayList<>();
     ActivityImagePickerBinding binding;
 
@@ -56,18 +69,26 @@ public class ImagePickerActivity extends AppCompatActivity {
         binding = ActivityImagePickerBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
         polygonView = findViewById(R.id.polygonView);
-        this.executor = Executors.newSingleThreadExecutor();
         if (!OpenCVLoader.initDebug()) {
             Log.e("OpenCV", "Unable to load OpenCV");
         } else {
             Log.d("OpenCV", "OpenCV loaded successfully");
         }
-        yolo_model = new Yolov8Seg(this, "model2.tflite", true, 4, false, true, "labels2.txt", 0);
-        try {
-            yolo_model.initialize_model();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        //loads in the background, a picked image waits for it instead of the activity start
+        //shared through the process-wide cache, reopening the picker doesn't reload it
+        final Context app_context = getApplicationContext();
+        yolo_model = ModelCache.getInstance().acquire(MODEL_KEY, () -> {
+            Yolo model = new Yolov8Seg(app_context, "model2.tflite", true, 4, false, true, "labels2.txt", 0);
+            ModelAutotuner.Config config = new ModelAutotuner(app_context).tune("model2.tflite", true, false);
+            model.setEngine(config.create_engine(false));
+            model.initialize_model();
+            model.warm_up(ModelLoader.DEFAULT_WARMUP_RUNS);
+            return model;
+        });
+        yolo_model.exceptionally(error -> {
+            Log.e("ImagePicker", "Unable to load model", error);
+            return null;
+        });
         binding.button.setOnClickListener(v -> {
             Intent i = new Intent();
             i.setType("image/*");
@@ -79,87 +100,176 @@ public class ImagePickerActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (shown_bitmap != null) {
+            BitmapPool.getInstance().release(shown_bitmap);
+            shown_bitmap = null;
+        }
+        yolo_model.whenComplete((model, error) -> {
+            if (model == null) {
+                release_models();
+                return;
+            }
+            //queued behind any running detection and never superseded by one, the cache closes the
+            //model once it has been idle
+            model.run_async(yolo -> {
+                release_models();
+                return null;
+            }, false).whenComplete((result, cancelled) -> {
+                //the model's detector was closed first, release from here
+                if (cancelled instanceof CancellationException) release_models();
+            });
+        });
+    }
+
+    private void release_models() {
+        if (tiled_inference != null) tiled_inference.close();
+        ModelCache.getInstance().release(MODEL_KEY);
+    }
+
+    private TiledInference get_tiled_inference() throws Exception {
+        if (tiled_inference == null) {
+            //the engine the main model was tuned to, already stored, with the CPU threads split
+            //between the interpreters running side by side
+            Context app_context = getApplicationContext();
+            ModelAutotuner.Config tuned = new ModelAutotuner(app_context).tune("model2.tflite", true, false);
+            int num_threads = Math.max(1, tuned.num_threads / TILE_POOL_SIZE);
+            ModelAutotuner.Config config = new ModelAutotuner.Config(num_threads, tuned.use_gpu,
+                    tuned.use_xnnpack, tuned.allow_fp16);
+            List<Yolo> pool = new ArrayList<>();
+            for (int i = 0; i < TILE_POOL_SIZE; i++) {
+                Yolo model = new Yolov8Seg(app_context, "model2.tflite", true, config.num_threads, false,
+                        config.use_gpu, "labels2.txt", 0);
+                model.setEngine(config.create_engine(false));
+                model.initialize_model();
+                pool.add(model);
+            }
+            tiled_inference = new TiledInference(pool);
+        }
+        return tiled_inference;
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == PICK_IMAGE && resultCode == RESULT_OK && data != null) {
             Uri imageUri = data.getData();
             if (imageUri != null) {
-                try {
-                    Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), imageUri);
-                    polygonView.setPreviewSize(bitmap.getWidth(), bitmap.getHeight());
-                    int size = bitmap.getRowBytes() * bitmap.getHeight();
+                yolo_on_image(imageUri, 0.4f, 0.5f, 0.5f);
+            }
+        }
+    }
 
-                    ByteBuffer byteBuffer = ByteBuffer.allocate(size);
-                    bitmap.copyPixelsToBuffer(byteBuffer);
-                    byte[] byteArray = byteBuffer.array();
-                    binding.imageView.setImageBitmap(bitmap);
-                    yolo_on_image(bitmap,bitmap.getHeight(), bitmap.getWidth(), 0.4, 0.5, 0.5);
+    /**
+     * Picked image decoded for detection, with the size of the original.
+     */
+    private static class DecodedImage {
+        final Bitmap bitmap;
+        final int original_width;
+        final int original_height;
+        List<Map<String, Object>> detections;
 
+        DecodedImage(Bitmap bitmap, int original_width, int original_height) {
+            this.bitmap = bitmap;
+            this.original_width = original_width;
+            this.original_height = original_height;
+        }
+    }
 
+    /**
+     * Decodes only as many pixels as the detection uses: close to the model input, or to
+     * {@link #TILED_DECODE_SIZE} when the image is large enough to be tiled.
+     */
+    private DecodedImage decode_image(Yolo yolo, Uri uri) throws Exception {
+        BitmapFactory.Options bounds = BitmapPool.read_bounds(getContentResolver(), uri);
+        int[] shape = yolo.getInputShape();
+        int input_size = Math.max(shape[1], shape[2]);
+        boolean large = Math.max(bounds.outWidth, bounds.outHeight) > 2 * input_size;
+        //a large image stays large enough after the decode to be tiled
+        int target_size = large ? Math.max(TILED_DECODE_SIZE, 2 * input_size + 1) : input_size;
+        Bitmap bitmap = BitmapPool.getInstance().decode(getContentResolver(), uri, bounds, target_size);
+        return new DecodedImage(bitmap, bounds.outWidth, bounds.outHeight);
+    }
 
+    /**
+     * Runs on the model's detection thread, a newer pick supersedes one that hasn't started.
+     */
+    private List<Map<String, Object>> detect_image(Yolo yolo, Bitmap bitmap, float iou_threshold,
+                                                   float conf_threshold, float class_threshold) throws Exception {
+        int[] shape = yolo.getInputShape();
+        int src_width = bitmap.getWidth();
+        int src_height = bitmap.getHeight();
 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+        boolean large = Math.max(src_width, src_height) > 2 * Math.max(shape[1], shape[2]);
+        if (large && get_tiled_inference().should_tile(src_width, src_height)) {
+            //small objects vanish when a large photo is squeezed into the model input
+            return tiled_inference.detect(bitmap, iou_threshold, conf_threshold, class_threshold);
         }
+        ByteBuffer byteBuffer = utils.feedInputTensor(bitmap, shape[1], shape[2], src_width, src_height, 0, 255);
+        return yolo.detect_task(byteBuffer, src_height, src_width, iou_threshold, conf_threshold, class_threshold);
     }
 
-    class DetectionTask implements Runnable {
-        private Yolo yolo;
-        Bitmap image;
-        private int image_height;
-        private int image_width;
-        private float iou_threshold;
-        private float conf_threshold;
-        private float class_threshold;
-
-        public DetectionTask(Yolo yolo, Bitmap image, double image_height, double image_width, double iou_threshold, double conf_threshold, double class_threshold) {
-            this.yolo = yolo;
-            this.image = image;
-            this.image_height = (int) image_height;
-            this.image_width = (int) image_width;
-            this.iou_threshold = (float) (double) iou_threshold;
-            this.conf_threshold = (float) (double) conf_threshold;
-            this.class_threshold = (float) (double) class_threshold;
-        }
-        public void print(String s) {
-            System.out.println(s);
-        }
-
-        @Override
-        public void run() {
-            try {
-               Bitmap bitmap = image;
-                int[] shape = yolo.getInputTensor().shape();
-                int src_width = bitmap.getWidth();
-                int src_height = bitmap.getHeight();
-
-                ByteBuffer byteBuffer = utils.feedInputTensor(bitmap, shape[1], shape[2], src_width, src_height, 0, 255);
-                detections = yolo.detect_task(byteBuffer, src_height, src_width, iou_threshold, conf_threshold, class_threshold);
-                isDetecting = false;
-                List<String> tags = new ArrayList<>();
-                for (Map<String, Object> output : detections) {
-                    if (output.containsKey("tag")) {
-                        tags.add((String) output.get("tag"));
+    /**
+     * Decodes and detects on the model's detection thread, a newer pick supersedes one that
+     * hasn't started before anything is decoded. Images seen before come from {@link ResultCache}.
+     */
+    private CompletableFuture<Void> yolo_on_image(Uri uri, float iouThreshold, float confThreshold, float classThreshold) {
+        return yolo_model.thenCompose(model -> model.run_async(yolo -> {
+                    ResultCache.Key key;
+                    try (InputStream stream = getContentResolver().openInputStream(uri)) {
+                        key = ResultCache.Key.of(ResultCache.content_hash(stream), MODEL_KEY,
+                                Yolo.model_version(getApplicationContext(), "model2.tflite", true),
+                                iouThreshold, confThreshold, classThreshold);
                     }
-                }
-                runOnUiThread(() -> {
-                    binding.textView.setText(tags.toString());
-                    polygonView.setDetections(detections);
+                    DecodedImage image = decode_image(yolo, uri);
+                    //an image seen before only needs decoding for display
+                    ResultCache cache = ResultCache.getInstance(getApplicationContext());
+                    image.detections = cache.get(key);
+                    if (image.detections != null) return image;
+                    try {
+                        image.detections = detect_image(yolo, image.bitmap, iouThreshold, confThreshold, classThreshold);
+                    } catch (Exception e) {
+                        BitmapPool.getInstance().release(image.bitmap);
+                        throw e;
+                    }
+                    //detections are shown over the original image size
+                    PostProcessing.scale_results(image.detections,
+                            image.original_width / (float) image.bitmap.getWidth(),
+                            image.original_height / (float) image.bitmap.getHeight());
+                    cache.put(key, image.detections);
+                    return image;
+                }))
+                .thenAccept(image -> {
+                    List<String> tags = new ArrayList<>();
+                    for (Map<String, Object> output : image.detections) {
+                        if (output.containsKey("tag")) {
+                            tags.add((String) output.get("tag"));
+                        }
+                    }
+                    runOnUiThread(() -> {
+                        if (isDestroyed()) {
+                            BitmapPool.getInstance().release(image.bitmap);
+                            return;
+                        }
+                        binding.imageView.setImageBitmap(image.bitmap);
+                        //the previous image goes back to the pool once it is off screen
+                        if (shown_bitmap != null) BitmapPool.getInstance().release(shown_bitmap);
+                        shown_bitmap = image.bitmap;
+                        //on screen until the next pick, for as long as the user looks at it
+                        BitmapPool.getInstance().keep(shown_bitmap);
+                        polygonView.setPreviewSize(image.original_width, image.original_height);
+                        binding.textView.setText(tags.toString());
+                        polygonView.setDetections(image.detections);
+                    });
+                })
+                .exceptionally(error -> {
+                    //superseded by a newer image, nothing to show
+                    if (!(error instanceof CancellationException || error.getCause() instanceof CancellationException)) {
+                        Log.e("ImagePicker", "detection failed", error);
+                    }
+                    return null;
                 });
-            } catch (Exception e) {
-                System.out.println(e);
-            }
-        }
-    }
-
-    private void yolo_on_image(Bitmap image, double imageHeight, double imageWidth, double iouThreshold, double confThreshold, double classThreshold) {
-        if (yolo_model != null ) {
-            isDetecting = true;
-            DetectionTask detectionTask = new DetectionTask(yolo_model, image, imageHeight, imageWidth, iouThreshold, confThreshold, classThreshold);
-            executor.execute(detectionTask);
-        }
     }
 }
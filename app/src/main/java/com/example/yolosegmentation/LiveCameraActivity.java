@@ -24,26 +24,54 @@ import androidx.core.content.ContextCompat;
 
 import com.example.yolosegmentation.databinding.ActivityLiveCameraBinding;
 import com.example.yolosegmentation.databinding.ActivityMainBinding;
+import com.example.yolosegmentation.models.ModelAutotuner;
+import com.example.yolosegmentation.models.ModelCache;
+import com.example.yolosegmentation.models.ModelLoader;
+import com.example.yolosegmentation.models.ModelRegistry;
+import com.example.yolosegmentation.models.RoiInference;
+import com.example.yolosegmentation.models.TensorRecorder;
 import com.example.yolosegmentation.models.Yolo;
 import com.example.yolosegmentation.models.Yolov8Seg;
-import com.example.yolosegmentation.view.PolygonView;
+import com.example.yolosegmentation.view.DetectionRenderer;
+import com.example.yolosegmentation.view.OverlaySurfaceView;
+import com.example.yolosegmentation.view.VsyncPublisher;
+import com.example.yolosegmentation.utils.BitmapPool;
+import com.example.yolosegmentation.utils.FrameMailbox;
+import com.example.yolosegmentation.utils.JavaYuvConverter;
+import com.example.yolosegmentation.utils.PipelineStats;
+import com.example.yolosegmentation.utils.ResultSnapshot;
+import com.example.yolosegmentation.utils.StageTimer;
+import com.example.yolosegmentation.utils.YuvConverter;
+import com.example.yolosegmentation.utils.YuvConverterSelector;
+import com.example.yolosegmentation.utils.YuvFrame;
 import com.example.yolosegmentation.utils.utils;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import org.opencv.android.OpenCVLoader;
 
-import java.nio.ByteBuffer;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class LiveCameraActivity extends AppCompatActivity {
     private Context context;
-    private PolygonView polygonView;
-
-    private Yolo yolo_model;
+    private OverlaySurfaceView overlayView;
+
+    private volatile ModelRegistry model_registry;
+    private CompletableFuture<ModelRegistry> model_loading;
+    //zoomed inference around the tracked objects, with periodic full-frame refreshes
+    private final RoiInference roi_inference = new RoiInference();
+    //model variants ordered from the lightest to the heaviest, missing assets are skipped
+    private static final String[] MODEL_VARIANTS = {"model2_int8.tflite", "model2_n.tflite", "model2.tflite"};
+    //frames captured by a long press on the status text, for offline replay
+    private static final int CAPTURE_FRAMES = 10;
+    private volatile TensorRecorder tensor_recorder;
     private static final int REQUEST_CODE_PERMISSIONS = 10;
     private static final String[] REQUIRED_PERMISSIONS = {android.Manifest.permission.CAMERA};
 
@@ -51,9 +79,16 @@ public class LiveCameraActivity extends AppCompatActivity {
     private ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
 
     private ExecutorService executor;
+    //latest camera frame waiting for the detector, a newer one replaces it
+    private FrameMailbox<CameraFrame> frame_mailbox;
+    //fastest YUV backend on this device, only used on the detection thread
+    private YuvConverter yuv_converter = new JavaYuvConverter();
+    //status text, updated at most once per vsync
+    private VsyncPublisher<ResultSnapshot> status_publisher;
+    private static final float IOU_THRESHOLD = 0.4f;
+    private static final float CONF_THRESHOLD = 0.5f;
+    private static final float CLASS_THRESHOLD = 0.5f;
 
-    private boolean isDetecting = false;
-    List<Map<String, Object>> detections;
     private static ArrayList<Map<String, Object>> empty = new ArrayList<>();
     ActivityLiveCameraBinding binding;
 
@@ -64,17 +99,29 @@ public class LiveCameraActivity extends AppCompatActivity {
         View view = binding.getRoot();
         setContentView(view);
 
-        polygonView = findViewById(R.id.polygonView);
+        overlayView = findViewById(R.id.overlayView);
 
         this.executor = Executors.newSingleThreadExecutor();
+        this.frame_mailbox = new FrameMailbox<>(executor, this::detect_frame);
+        this.status_publisher = new VsyncPublisher<>(this::show_status);
         this.context = binding.getRoot().getContext();
 
         if (!OpenCVLoader.initDebug()) {
             Toast.makeText(this, "Unable to load OpenCV", Toast.LENGTH_SHORT).show();
             return;
         }
-
-        binding.textView.setText("Detecting");
+        //benchmarked on the detection thread before the first frame reaches it
+        executor.execute(() -> yuv_converter = YuvConverterSelector.select(context, 640, 480));
+
+        binding.textView.setText("Loading model");
+        //tap the status text for the per-stage latency HUD
+        binding.textView.setOnClickListener(v -> binding.stageHud.toggle());
+        binding.textView.setOnLongClickListener(v -> {
+            start_capture();
+            return true;
+        });
+        //tap the overlay to switch between polygons and the label map mask overlay
+        overlayView.setOnClickListener(v -> overlayView.toggleRenderMode());
 
         // Request camera permissions
         if (allPermissionsGranted()) {
@@ -84,10 +131,36 @@ public class LiveCameraActivity extends AppCompatActivity {
         }
 
         cameraExecutor = Executors.newSingleThreadExecutor();
+        //the preview starts right away, frames are skipped until the model is ready
+        model_loading = ModelLoader.load_async(this::load_yolo_model);
+        model_loading.whenComplete((registry, error) -> runOnUiThread(() -> {
+            if (error != null) {
+                Toast.makeText(this, "Unable to load model", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (isDestroyed()) {
+                //never handed to the detection thread, nothing else can be using it
+                registry.close();
+                return;
+            }
+            model_registry = registry;
+            binding.textView.setText("Detecting");
+        }));
+    }
+
+    private void start_capture() {
         try {
-            load_yolo_model();
+            if (tensor_recorder == null) {
+                File directory = new File(getExternalFilesDir(null), "captures");
+                if (!directory.exists() && !directory.mkdirs()) {
+                    throw new Exception("unable to create " + directory);
+                }
+                tensor_recorder = new TensorRecorder(new File(directory, "capture_" + System.currentTimeMillis() + ".bin"));
+            }
+            tensor_recorder.capture(CAPTURE_FRAMES);
+            Toast.makeText(this, "Capturing " + CAPTURE_FRAMES + " frames to " + tensor_recorder.getFile().getName(), Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            Toast.makeText(this, "Unable to start capture: " + e.getMessage(), Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -116,40 +189,22 @@ public class LiveCameraActivity extends AppCompatActivity {
         imageAnalysis.setAnalyzer(cameraExecutor, new ImageAnalysis.Analyzer() {
             @OptIn(markerClass = ExperimentalGetImage.class) @Override
             public void analyze(@NonNull ImageProxy imageProxy) {
+                //clockwise rotation from the sensor to the display, applied by the sampler
                 int rotation = imageProxy.getImageInfo().getRotationDegrees();
+                //sensor timestamp, carried with the frame to measure its age on screen
+                long timestamp = imageProxy.getImageInfo().getTimestamp();
+                PipelineStats.getInstance().frame_received();
                 int imageHeight = imageProxy.getHeight();
                 int imageWidth = imageProxy.getWidth();
 
-                // Set preview size for PolygonView
-                runOnUiThread(() -> polygonView.setPreviewSize(imageWidth, imageHeight));
-
-                // Get image format
-                int format = imageProxy.getFormat();
-                List<byte[]> frameBytes = new ArrayList<>();
-
-                if (format == ImageFormat.YUV_420_888 || format == ImageFormat.YUV_422_888 || format == ImageFormat.YUV_444_888) {
-                    // YUV formats: multiple planes
-                    Image image = imageProxy.getImage();
-                    if (image != null) {
-                        Image.Plane[] planes = image.getPlanes();
-                        for (Image.Plane plane : planes) {
-                            ByteBuffer buffer = plane.getBuffer();
-                            byte[] bytes = new byte[buffer.remaining()];
-                            buffer.get(bytes);
-                            frameBytes.add(bytes);
-                        }
-                    }
-                } else {
-                    // Other formats (e.g., RGBA_8888): single plane
-                    ByteBuffer buffer = imageProxy.getPlanes()[0].getBuffer();
-                    byte[] bytes = new byte[buffer.remaining()];
-                    buffer.get(bytes);
-                    frameBytes.add(bytes);
-                }
-
-                // Call yolo_on_frame with the extracted bytes
-                if (!frameBytes.isEmpty()) {
-                    yolo_on_frame(frameBytes, imageHeight, imageWidth, 0.4, 0.5, 0.5);
+                long copy_start = StageTimer.getInstance().start(StageTimer.Stage.CAMERA_COPY);
+                Image image = imageProxy.getImage();
+                //ImageAnalysis delivers YUV_420_888 unless told otherwise, the converters take nothing else
+                YuvFrame yuv = image != null && imageProxy.getFormat() == ImageFormat.YUV_420_888
+                        ? YuvFrame.copy_of(image) : null;
+                StageTimer.getInstance().stop(StageTimer.Stage.CAMERA_COPY, copy_start);
+                if (yuv != null) {
+                    yolo_on_frame(new CameraFrame(yuv, timestamp, rotation, imageHeight, imageWidth));
                 }
 
                 imageProxy.close();
@@ -193,73 +248,148 @@ public class LiveCameraActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         cameraExecutor.shutdown();
+        frame_mailbox.close();
+        status_publisher.cancel();
+        executor.execute(() -> {
+            if (model_registry != null) model_registry.close();
+            yuv_converter.close();
+            try {
+                if (tensor_recorder != null) tensor_recorder.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        executor.shutdown();
     }
 
-    private void load_yolo_model() throws Exception {
-        yolo_model = new Yolov8Seg(
-                context,
-                "model2.tflite",
-                true,
-                1,
-                false,
-                false,
-                "labels2.txt",
-                90
-        );
-        yolo_model.initialize_model();
+    private ModelRegistry load_yolo_model() throws Exception {
+        List<String> assets = Arrays.asList(context.getAssets().list(""));
+        ModelRegistry registry = new ModelRegistry(context);
+        ModelAutotuner autotuner = new ModelAutotuner(context);
+        final ModelCache cache = ModelCache.getInstance();
+        try {
+            for (String variant : MODEL_VARIANTS) {
+                if (!assets.contains(variant)) continue;
+                //shared across activity restarts, only the first acquire loads the model
+                final String key = ModelCache.key(variant, true, 1, false, false, "labels2.txt", 90);
+                Yolo model;
+                try {
+                    model = cache.acquire(key, () -> {
+                        Yolo yolo = new Yolov8Seg(
+                                context.getApplicationContext(),
+                                variant,
+                                true,
+                                1,
+                                false,
+                                false,
+                                "labels2.txt",
+                                90
+                        );
+                        //benchmarked once per model and device, cached afterwards
+                        yolo.setEngine(autotuner.tune(variant, true, false).create_engine(false));
+                        yolo.initialize_model();
+                        yolo.warm_up(ModelLoader.DEFAULT_WARMUP_RUNS);
+                        return yolo;
+                    }).get();
+                } catch (Exception e) {
+                    //not registered yet, the registry won't release it
+                    cache.release(key);
+                    throw e;
+                }
+                registry.register(variant, model, () -> cache.release(key));
+            }
+            registry.preload();
+        } catch (Exception e) {
+            //hands the variants acquired so far back to the cache
+            registry.close();
+            throw e;
+        }
+        return registry;
     }
 
-    class DetectionTask implements Runnable {
-        private Yolo yolo;
-        private List<byte[]> frame;
-        private int image_height;
-        private int image_width;
-        private float iou_threshold;
-        private float conf_threshold;
-        private float class_threshold;
-
-        public DetectionTask(Yolo yolo, List<byte[]> frame, double image_height, double image_width, double iou_threshold, double conf_threshold, double class_threshold) {
-            this.yolo = yolo;
-            this.frame = frame;
-            this.image_height = (int) image_height;
-            this.image_width = (int) image_width;
-            this.iou_threshold = (float) (double) iou_threshold;
-            this.conf_threshold = (float) (double) conf_threshold;
-            this.class_threshold = (float) (double) class_threshold;
+    /**
+     * Planes of one camera frame, handed from the analyzer to the detector.
+     */
+    static class CameraFrame {
+        final YuvFrame yuv;
+        final long timestamp;
+        final int rotation;
+        final int image_height;
+        final int image_width;
+
+        CameraFrame(YuvFrame yuv, long timestamp, int rotation, int image_height, int image_width) {
+            this.yuv = yuv;
+            this.timestamp = timestamp;
+            this.rotation = rotation;
+            this.image_height = image_height;
+            this.image_width = image_width;
         }
+    }
 
-        @Override
-        public void run() {
-            try {
-                Bitmap bitmap = utils.feedInputToBitmap(context, frame, image_height, image_width, 90);
-                int[] shape = yolo.getInputTensor().shape();
-                int src_width = bitmap.getWidth();
-                int src_height = bitmap.getHeight();
-                ByteBuffer byteBuffer = utils.feedInputTensor(bitmap, shape[1], shape[2], src_width, src_height, 0, 255);
-                detections = yolo.detect_task(byteBuffer, src_height, src_width, iou_threshold, conf_threshold, class_threshold);
-                isDetecting = false;
-                List<String> tags = new ArrayList<>();
-                for (Map<String, Object> output : detections) {
-                    if (output.containsKey("tag")) {
-                        tags.add((String) output.get("tag"));
-                    }
+    /**
+     * Runs on the activity's frame thread, one frame at a time. Inference itself runs on the
+     * model's detection thread.
+     */
+    private void detect_frame(CameraFrame frame) throws Exception {
+        long start = System.currentTimeMillis();
+        ModelRegistry registry = model_registry;
+        //the active variant is only picked at frame boundaries
+        Yolo yolo = registry.acquire();
+        final boolean compose_label_map = overlayView.getRenderMode() == DetectionRenderer.Mode.LABEL_MAP;
+        final TensorRecorder recorder = tensor_recorder;
+        //left in sensor orientation, the sampler reads it upright
+        final Bitmap bitmap = utils.yuv_to_bitmap(yuv_converter, frame.yuv);
+        List<Map<String, Object>> detections;
+        try {
+            //the model is shared through the cache with other instances of this activity (the
+            //previous one still finishing a frame after a rotation), its detection thread runs one
+            //inference at a time. Per-frame model settings are applied in the same job
+            detections = yolo.run_async(model -> {
+                if (model instanceof Yolov8Seg) {
+                    ((Yolov8Seg) model).setComposeLabelMap(compose_label_map);
                 }
+                model.setRecorder(recorder);
+                try {
+                    return roi_inference.detect(model, bitmap, frame.rotation, IOU_THRESHOLD, CONF_THRESHOLD, CLASS_THRESHOLD);
+                } finally {
+                    model.setRecorder(null);
+                }
+            }).get();
+        } catch (CancellationException e) {
+            //skipped by the model's in-flight limit
+            PipelineStats.getInstance().frame_dropped();
+            return;
+        } finally {
+            BitmapPool.getInstance().release(bitmap);
+        }
+        registry.report_frame(System.currentTimeMillis() - start, detections.size());
+        PipelineStats.getInstance().frame_processed(frame.timestamp);
+
+        //detections are upright, so is the size they are drawn against
+        boolean sideways = frame.rotation % 180 != 0;
+        ResultSnapshot snapshot = new ResultSnapshot(detections, frame.timestamp,
+                sideways ? frame.image_height : frame.image_width,
+                sideways ? frame.image_width : frame.image_height);
+        //the overlay draws on its own render thread, the text is coalesced to the next vsync
+        overlayView.publish(snapshot);
+        status_publisher.publish(snapshot);
+    }
 
-                runOnUiThread(() -> {
-                    binding.textView.setText(tags.toString());
-                    polygonView.setDetections(detections);
-                });
-            } catch (Exception e) {
-                System.out.println(e);
+    private void show_status(ResultSnapshot snapshot) {
+        List<String> tags = new ArrayList<>();
+        for (Map<String, Object> output : snapshot.detections) {
+            if (output.containsKey("tag")) {
+                tags.add((String) output.get("tag"));
             }
         }
+        binding.textView.setText(tags.toString());
     }
 
-    private void yolo_on_frame(List<byte[]> frame, double imageHeight, double imageWidth, double iouThreshold, double confThreshold, double classThreshold) {
-        if (yolo_model != null && !isDetecting) {
-            isDetecting = true;
-            DetectionTask detectionTask = new DetectionTask(yolo_model, frame, imageHeight, imageWidth, iouThreshold, confThreshold, classThreshold);
-            executor.execute(detectionTask);
+    private void yolo_on_frame(CameraFrame frame) {
+        if (model_registry == null) return;
+        //a frame still waiting for the detector is replaced by the newer one
+        if (frame_mailbox.post(frame) != null) {
+            PipelineStats.getInstance().frame_dropped();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,168 @@
+package com.example.yolosegmentation.models;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduler behind {@link Yolo#detect_async}: one thread per model, since a model and its output
+ * arrays can only run one inference at a time, and a bounded number of jobs in flight (running
+ * plus queued).
+ *
+ * When a new job would go over the limit the oldest queued job is superseded, its future is
+ * cancelled and it never runs. With nothing queued to supersede (a limit of 1 and a job running)
+ * the new job is the one skipped. Either way callers get the latest frames processed instead of a
+ * growing backlog. Jobs whose future the caller cancelled are dropped without running.
+ *
+ * Jobs submitted as not supersedable (e.g. releasing what a model holds when its owner goes away)
+ * are never superseded or skipped and don't count against the limit, only {@link #close} cancels
+ * them.
+ */
+public class AsyncDetector {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    //how long close() waits for the running job before the model is released anyway
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    public interface Job<T> {
+        T run(Yolo model) throws Exception;
+    }
+
+    private static class Pending<T> {
+        final Job<T> job;
+        final boolean supersedable;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(Job<T> job, boolean supersedable) {
+            this.job = job;
+            this.supersedable = supersedable;
+        }
+
+        void run(Yolo model) {
+            if (future.isDone()) return;
+            try {
+                future.complete(job.run(model));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final Yolo model;
+    private final ExecutorService executor;
+    private final ArrayDeque<Pending<?>> queued = new ArrayDeque<>();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile Thread worker;
+    private volatile int max_in_flight = DEFAULT_MAX_IN_FLIGHT;
+    private boolean draining = false;
+    private boolean running = false;
+    private boolean closed = false;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Pending<?> pending;
+                synchronized (AsyncDetector.this) {
+                    pending = queued.pollFirst();
+                    running = pending != null;
+                    if (pending == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                pending.run(model);
+            }
+        }
+    };
+
+    public AsyncDetector(Yolo model) {
+        this.model = model;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "yolo-detector");
+            thread.setDaemon(true);
+            worker = thread;
+            return thread;
+        });
+    }
+
+    /**
+     * Jobs running or queued at most, 1 or more.
+     */
+    public void setMaxInFlight(int max_in_flight) {
+        this.max_in_flight = Math.max(1, max_in_flight);
+    }
+
+    public int getMaxInFlight() {
+        return max_in_flight;
+    }
+
+    /**
+     * Jobs superseded or skipped because of the in-flight limit.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public <T> CompletableFuture<T> submit(Job<T> job) {
+        return submit(job, true);
+    }
+
+    public synchronized <T> CompletableFuture<T> submit(Job<T> job, boolean supersedable) {
+        Pending<T> pending = new Pending<>(job, supersedable);
+        if (closed) {
+            pending.future.completeExceptionally(new CancellationException("detector closed"));
+            return pending.future;
+        }
+        //jobs cancelled by their caller don't hold a slot
+        int in_flight = running ? 1 : 0;
+        Pending<?> oldest = null;
+        for (Iterator<Pending<?>> iterator = queued.iterator(); iterator.hasNext(); ) {
+            Pending<?> next = iterator.next();
+            if (next.future.isDone()) {
+                iterator.remove();
+            } else if (next.supersedable) {
+                in_flight++;
+                if (oldest == null) oldest = next;
+            }
+        }
+        if (supersedable && in_flight >= max_in_flight) {
+            skipped.incrementAndGet();
+            if (oldest == null) {
+                pending.future.cancel(false);
+                return pending.future;
+            }
+            queued.remove(oldest);
+            oldest.future.cancel(false);
+        }
+        queued.addLast(pending);
+        if (!draining) {
+            draining = true;
+            executor.execute(drain);
+        }
+        return pending.future;
+    }
+
+    /**
+     * Cancels the queued jobs and waits a bounded time for the running one, so the model can be
+     * released afterwards. Called from a job it doesn't wait for itself.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (Pending<?> pending : queued) pending.future.cancel(false);
+            queued.clear();
+        }
+        executor.shutdown();
+        if (Thread.currentThread() == worker) return;
+        try {
+            executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.yolosegmentation.models;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Backend that runs the network for {@link Yolo}. Shapes and outputs always follow the TFLite
+ * export layout the post-processing was written for: input [1, height, width, 3] float32 RGB,
+ * output 0 [1, 4 + classes (+ 32 mask weights), candidates] with normalized box coordinates and,
+ * for segmentation models, output 1 [1, mask_height, mask_width, 32]. Engines exporting a
+ * different layout convert their results while copying them into the caller's arrays.
+ */
+public interface InferenceEngine {
+    /**
+     * @param model the model file contents, it may be a read only mapped buffer
+     */
+    void load(ByteBuffer model) throws Exception;
+
+    int[] getInputShape();
+
+    int getOutputCount();
+
+    int[] getOutputShape(int index);
+
+    /**
+     * Runs one inference and writes the results into {@code outputs}, which maps each output
+     * index to a float array of {@link #getOutputShape(int)} allocated once by the caller.
+     */
+    void run(ByteBuffer input, Map<Integer, Object> outputs);
+
+    void close();
+}
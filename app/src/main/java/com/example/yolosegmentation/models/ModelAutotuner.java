@@ -0,0 +1,255 @@
+package com.example.yolosegmentation.models;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.tensorflow.lite.gpu.CompatibilityList;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the fastest TFLite configuration for a model on the current device.
+ *
+ * Every candidate (CPU thread counts, XNNPACK on/off, fp16 relaxation, GPU when the device
+ * supports it) is warmed up and timed on a synthetic frame, and its output is compared against a
+ * plain fp32 CPU run so a configuration that is fast but wrong is rejected. The winner is stored in
+ * SharedPreferences under the model file and the device, so later launches skip the benchmark.
+ */
+public class ModelAutotuner {
+    private static final String TAG = "ModelAutotuner";
+    private static final String PREFERENCES = "model_autotune";
+
+    public static class Config {
+        public final int num_threads;
+        public final boolean use_gpu;
+        public final boolean use_xnnpack;
+        public final boolean allow_fp16;
+
+        public Config(int num_threads, boolean use_gpu, boolean use_xnnpack, boolean allow_fp16) {
+            this.num_threads = num_threads;
+            this.use_gpu = use_gpu;
+            this.use_xnnpack = use_xnnpack;
+            this.allow_fp16 = allow_fp16;
+        }
+
+        public TfliteEngine create_engine(boolean quantization) {
+            return new TfliteEngine(num_threads, use_gpu, quantization, use_xnnpack, allow_fp16);
+        }
+
+        String serialize() {
+            return num_threads + "," + use_gpu + "," + use_xnnpack + "," + allow_fp16;
+        }
+
+        static Config parse(String value) {
+            String[] fields = value.split(",");
+            return new Config(Integer.parseInt(fields[0]), Boolean.parseBoolean(fields[1]),
+                    Boolean.parseBoolean(fields[2]), Boolean.parseBoolean(fields[3]));
+        }
+
+        @Override
+        public String toString() {
+            return use_gpu ? "gpu" + (allow_fp16 ? " fp16" : "")
+                    : "cpu x" + num_threads + (use_xnnpack ? " xnnpack" : "") + (allow_fp16 ? " fp16" : "");
+        }
+    }
+
+    private final Context context;
+    private int warmup_runs = 2;
+    private int timed_runs = 5;
+    //mean absolute error allowed against the fp32 reference, relative to its mean magnitude
+    private float tolerance = 0.02f;
+
+    public ModelAutotuner(Context context) {
+        this.context = context;
+    }
+
+    public ModelAutotuner setRuns(int warmup_runs, int timed_runs) {
+        this.warmup_runs = warmup_runs;
+        this.timed_runs = Math.max(1, timed_runs);
+        return this;
+    }
+
+    public ModelAutotuner setTolerance(float tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Returns the cached configuration for this model and device, benchmarking the candidates
+     * first when there is none.
+     */
+    public Config tune(String model_path, boolean is_assets, boolean quantization) throws Exception {
+        String key = cache_key(model_path, is_assets, quantization);
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        String cached = preferences.getString(key, null);
+        if (cached != null) {
+            try {
+                return Config.parse(cached);
+            } catch (Exception e) {
+                Log.w(TAG, "ignoring malformed autotune entry " + cached);
+            }
+        }
+
+        MappedByteBuffer model = Yolo.map_model(context, model_path, is_assets);
+        Config best = benchmark(model, quantization);
+        preferences.edit().putString(key, best.serialize()).apply();
+        return best;
+    }
+
+    /**
+     * Drops every stored result, e.g. after an app update that changes the TFLite runtime.
+     */
+    public void clear() {
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private Config benchmark(ByteBuffer model, boolean quantization) throws Exception {
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        Config reference_config = new Config(Math.min(cores, 4), false, false, false);
+        Result reference = run_candidate(model, reference_config, quantization, null);
+        if (reference == null) {
+            throw new Exception("autotune reference run failed");
+        }
+
+        Config best = reference_config;
+        long best_time = reference.time_us;
+        for (Config candidate : candidates(cores)) {
+            Result result = run_candidate(model, candidate, quantization, reference.output);
+            if (result == null) continue;
+            Log.d(TAG, candidate + ": " + result.time_us + "us error " + result.error);
+            if (result.error <= tolerance && result.time_us < best_time) {
+                best = candidate;
+                best_time = result.time_us;
+            }
+        }
+        Log.i(TAG, "selected " + best + " (" + best_time + "us)");
+        return best;
+    }
+
+    private List<Config> candidates(int cores) {
+        List<Integer> threads = new ArrayList<>();
+        for (int t : new int[]{1, 2, 4, cores}) {
+            if (t <= cores && !threads.contains(t)) threads.add(t);
+        }
+        List<Config> candidates = new ArrayList<>();
+        for (int t : threads) {
+            candidates.add(new Config(t, false, true, false));
+            candidates.add(new Config(t, false, false, false));
+            candidates.add(new Config(t, false, true, true));
+        }
+        if (new CompatibilityList().isDelegateSupportedOnThisDevice()) {
+            candidates.add(new Config(1, true, false, false));
+            candidates.add(new Config(1, true, false, true));
+        }
+        return candidates;
+    }
+
+    private static class Result {
+        long time_us;
+        float error;
+        float[] output;
+    }
+
+    /**
+     * Median inference time of one configuration, null when it can't be created on this device.
+     */
+    private Result run_candidate(ByteBuffer model, Config config, boolean quantization, float[] reference) {
+        TfliteEngine engine = config.create_engine(quantization);
+        try {
+            engine.load(model.duplicate());
+            if (config.use_gpu && !engine.isUsingGpu()) {
+                //the delegate failed and fell back to the CPU, the CPU candidates cover that
+                return null;
+            }
+            ByteBuffer input = synthetic_input(engine.getInputShape());
+            Map<Integer, Object> outputs = new HashMap<>();
+            for (int i = 0; i < engine.getOutputCount(); i++) {
+                outputs.put(i, Array.newInstance(float.class, engine.getOutputShape(i)));
+            }
+            for (int i = 0; i < warmup_runs; i++) {
+                input.rewind();
+                engine.run(input, outputs);
+            }
+            long[] times = new long[timed_runs];
+            for (int i = 0; i < timed_runs; i++) {
+                input.rewind();
+                long start = SystemClock.elapsedRealtimeNanos();
+                engine.run(input, outputs);
+                times[i] = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            }
+            Arrays.sort(times);
+
+            Result result = new Result();
+            result.time_us = times[timed_runs / 2];
+            result.output = flatten((float[][][]) outputs.get(0));
+            result.error = reference == null ? 0f : relative_error(result.output, reference);
+            return result;
+        } catch (Exception e) {
+            Log.w(TAG, config + " unavailable: " + e.getMessage());
+            return null;
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Deterministic gradient frame, it gives the network something less degenerate than zeros
+     * to compare outputs on.
+     */
+    private static ByteBuffer synthetic_input(int[] shape) {
+        int height = shape[1];
+        int width = shape[2];
+        int channels = shape[3];
+        ByteBuffer input = ByteBuffer.allocateDirect(height * width * channels * 4).order(ByteOrder.nativeOrder());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int c = 0; c < channels; c++) {
+                    input.putFloat(((x * (c + 1) + y * (3 - c)) % 256) / 255f);
+                }
+            }
+        }
+        input.rewind();
+        return input;
+    }
+
+    private static float[] flatten(float[][][] output) {
+        int rows = output[0].length;
+        int cols = output[0][0].length;
+        float[] flat = new float[rows * cols];
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(output[0][r], 0, flat, r * cols, cols);
+        }
+        return flat;
+    }
+
+    private static float relative_error(float[] output, float[] reference) {
+        double error = 0;
+        double magnitude = 0;
+        for (int i = 0; i < reference.length; i++) {
+            error += Math.abs(output[i] - reference[i]);
+            magnitude += Math.abs(reference[i]);
+        }
+        return magnitude == 0 ? (float) error : (float) (error / magnitude);
+    }
+
+    /**
+     * Model name and {@link Yolo#model_version} plus the device, so a cached result costs nothing
+     * at startup and is dropped when the model or the device changes.
+     */
+    private String cache_key(String model_path, boolean is_assets, boolean quantization) throws Exception {
+        return model_path + "_" + Yolo.model_version(context, model_path, is_assets)
+                + "_" + Build.MANUFACTURER + "_" + Build.MODEL + "_" + Build.HARDWARE
+                + "_" + Build.VERSION.SDK_INT + "_" + quantization;
+    }
+}
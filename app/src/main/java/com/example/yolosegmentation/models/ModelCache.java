@@ -0,0 +1,142 @@
+package com.example.yolosegmentation.models;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide, reference counted cache of initialized models, so going back and forth between
+ * activities doesn't map the model and rebuild the interpreter every time.
+ *
+ * Models are keyed by path and options (see {@link #key}). {@link #acquire} loads a model in the
+ * background the first time and hands out the same instance afterwards, {@link #release} drops
+ * a reference, and a model nobody holds is closed once it has been idle for
+ * {@link #setIdleTimeout(long) the idle timeout}. A shared model is still a single interpreter:
+ * holders run detections through {@link Yolo#run_async}, whose thread runs them one at a time.
+ */
+public class ModelCache {
+    private static final String TAG = "ModelCache";
+    private static ModelCache instance;
+
+    private static class Entry {
+        final String key;
+        final CompletableFuture<Yolo> model;
+        int references = 0;
+        ScheduledFuture<?> idle_close;
+
+        Entry(String key, CompletableFuture<Yolo> model) {
+            this.key = key;
+            this.model = model;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "model-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long idle_timeout_ms = 30000;
+
+    private ModelCache() {
+    }
+
+    public static synchronized ModelCache getInstance() {
+        if (instance == null) {
+            instance = new ModelCache();
+        }
+        return instance;
+    }
+
+    public static String key(String model_path, boolean is_assets, int num_threads,
+                             boolean quantization, boolean use_gpu, String label_path, int rotation) {
+        return model_path + "|" + is_assets + "|" + num_threads + "|" + quantization
+                + "|" + use_gpu + "|" + label_path + "|" + rotation;
+    }
+
+    public synchronized ModelCache setIdleTimeout(long idle_timeout_ms) {
+        this.idle_timeout_ms = idle_timeout_ms;
+        return this;
+    }
+
+    /**
+     * Returns the cached model for {@code key}, loading (and warming up) it with {@code loader}
+     * on the loader thread when it isn't cached. Every call must be paired with a
+     * {@link #release(String)}.
+     */
+    public synchronized CompletableFuture<Yolo> acquire(String key, ModelLoader.Loader<Yolo> loader) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.model.isCompletedExceptionally()) {
+            entry = new Entry(key, ModelLoader.load_async(loader));
+            entries.put(key, entry);
+        }
+        entry.references++;
+        if (entry.idle_close != null) {
+            entry.idle_close.cancel(false);
+            entry.idle_close = null;
+        }
+        return entry.model;
+    }
+
+    public synchronized void release(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.references == 0) {
+            Log.w(TAG, "release without acquire for " + key);
+            return;
+        }
+        entry.references--;
+        if (entry.references == 0) {
+            entry.idle_close = scheduler.schedule(() -> close_if_idle(entry), idle_timeout_ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void close_if_idle(Entry entry) {
+        if (entry.references > 0 || entries.get(entry.key) != entry) return;
+        entries.remove(entry.key);
+        Log.d(TAG, "closing idle model " + entry.key);
+        entry.model.thenAccept(Yolo::close);
+    }
+
+    /**
+     * Closes every model nobody holds right away, e.g. on {@code onTrimMemory}.
+     */
+    public synchronized void trim() {
+        for (Entry entry : entries.values().toArray(new Entry[0])) {
+            if (entry.references == 0) {
+                if (entry.idle_close != null) entry.idle_close.cancel(false);
+                close_if_idle(entry);
+            }
+        }
+    }
+
+    /**
+     * Estimated bytes held by the loaded models: model buffers plus input and output tensors.
+     */
+    public synchronized long getMemoryUsage() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            Yolo model = entry.model.getNow(null);
+            if (model != null) bytes += model.estimate_memory_bytes();
+        }
+        return bytes;
+    }
+
+    public synchronized String report() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : entries.values()) {
+            Yolo model = entry.model.getNow(null);
+            builder.append(entry.key)
+                    .append(" refs=").append(entry.references)
+                    .append(model == null ? " loading" : " bytes=" + model.estimate_memory_bytes())
+                    .append('\n');
+        }
+        builder.append("total bytes=").append(getMemoryUsage());
+        return builder.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.yolosegmentation.models;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads models on a background thread so activities can show the camera preview right away.
+ *
+ * Besides mapping the model and building the interpreter, loading runs a couple of warm-up
+ * inferences: the first run is the one that pays for delegate compilation, kernel selection and
+ * JIT, and it is better spent here than on the first real frame.
+ */
+public class ModelLoader {
+    public static final int DEFAULT_WARMUP_RUNS = 2;
+
+    public interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    //not a single thread: a loader may itself wait on other loads, e.g. through ModelCache
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "model-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static <T> CompletableFuture<T> load_async(final Loader<T> loader) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(loader.load());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public static CompletableFuture<Yolo> load_async(final Yolo model, final int warmup_runs) {
+        return load_async(() -> {
+            model.initialize_model();
+            model.warm_up(warmup_runs);
+            return model;
+        });
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.yolosegmentation.models;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds several preloaded variants of the same segmentation model, ordered from the lightest to
+ * the heaviest (e.g. nano int8, nano float, small float), and decides which one runs next.
+ *
+ * The active variant only changes between frames: the detection thread calls {@link #acquire()}
+ * at the start of a frame and {@link #report_frame(long, int)} when it is done. Every variant is
+ * initialized and warmed up by {@link #preload()}, so a switch is just an index change and
+ * never blocks the pipeline on interpreter creation or a cold first run.
+ */
+public class ModelRegistry {
+    private static final String TAG = "ModelRegistry";
+
+    public static class Variant {
+        public final String name;
+        public final Yolo model;
+        //called instead of closing the model when it is shared, may be null
+        final Runnable release;
+
+        public Variant(String name, Yolo model, Runnable release) {
+            this.name = name;
+            this.model = model;
+            this.release = release;
+        }
+    }
+
+    private final List<Variant> variants = new ArrayList<>();
+    private final Context context;
+
+    //latency budget per frame, in milliseconds
+    private long frame_budget_ms = 100;
+    //frames the budget has to be missed (or met) before switching
+    private int frames_to_downgrade = 5;
+    private int frames_to_upgrade = 30;
+    //frames without detections before falling back to the lightest variant
+    private int idle_frames = 60;
+
+    private volatile int active_index = 0;
+    private volatile int thermal_status = 0;
+    private float latency_ema = -1f;
+    private int slow_frames = 0;
+    private int fast_frames = 0;
+    private int empty_frames = 0;
+    private PowerManager.OnThermalStatusChangedListener thermal_listener;
+
+    public ModelRegistry(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Variants must be registered from the lightest to the heaviest one.
+     */
+    public ModelRegistry register(String name, Yolo model) {
+        return register(name, model, null);
+    }
+
+    /**
+     * Registers a model owned by someone else (e.g. {@link ModelCache}): {@code release} is run
+     * on {@link #close()} instead of closing it. Models that are already initialized are not
+     * loaded again by {@link #preload()}.
+     */
+    public ModelRegistry register(String name, Yolo model, Runnable release) {
+        variants.add(new Variant(name, model, release));
+        return this;
+    }
+
+    public ModelRegistry setFrameBudget(long frame_budget_ms) {
+        this.frame_budget_ms = frame_budget_ms;
+        return this;
+    }
+
+    public ModelRegistry setSwitchHysteresis(int frames_to_downgrade, int frames_to_upgrade, int idle_frames) {
+        this.frames_to_downgrade = frames_to_downgrade;
+        this.frames_to_upgrade = frames_to_upgrade;
+        this.idle_frames = idle_frames;
+        return this;
+    }
+
+    public void preload() throws Exception {
+        if (variants.isEmpty()) {
+            throw new Exception("no model variants registered");
+        }
+        for (Variant variant : variants) {
+            if (variant.model.is_initialized()) continue;
+            variant.model.initialize_model();
+            variant.model.warm_up(ModelLoader.DEFAULT_WARMUP_RUNS);
+        }
+        //start on the heaviest variant, the policy degrades it if the device can't keep up
+        active_index = variants.size() - 1;
+        register_thermal_listener();
+    }
+
+    public int size() {
+        return variants.size();
+    }
+
+    public Variant getActiveVariant() {
+        return variants.get(active_index);
+    }
+
+    /**
+     * Model to use for the frame that is about to start.
+     */
+    public Yolo acquire() {
+        return variants.get(active_index).model;
+    }
+
+    /**
+     * Feeds the cost of the last frame into the switching policy. The new variant, if any,
+     * is returned by the next {@link #acquire()} call.
+     */
+    public void report_frame(long latency_ms, int object_count) {
+        if (latency_ema < 0) {
+            latency_ema = latency_ms;
+        } else {
+            latency_ema = 0.8f * latency_ema + 0.2f * latency_ms;
+        }
+        empty_frames = object_count == 0 ? empty_frames + 1 : 0;
+
+        int target = active_index;
+        if (latency_ema > frame_budget_ms) {
+            slow_frames++;
+            fast_frames = 0;
+            if (slow_frames >= frames_to_downgrade) target = active_index - 1;
+        } else if (latency_ema < frame_budget_ms * 0.6f) {
+            fast_frames++;
+            slow_frames = 0;
+            if (fast_frames >= frames_to_upgrade && empty_frames < idle_frames) target = active_index + 1;
+        } else {
+            slow_frames = 0;
+            fast_frames = 0;
+        }
+        //nothing in front of the camera, there is no point paying for the accurate model
+        if (empty_frames >= idle_frames) target = 0;
+
+        target = Math.max(0, Math.min(target, max_index_for_thermal_status()));
+        if (target != active_index) {
+            switch_to(target);
+        }
+    }
+
+    private int max_index_for_thermal_status() {
+        int last = variants.size() - 1;
+        if (thermal_status >= PowerManager.THERMAL_STATUS_SEVERE) return 0;
+        if (thermal_status >= PowerManager.THERMAL_STATUS_MODERATE) return Math.max(0, last - 1);
+        return last;
+    }
+
+    private void switch_to(int index) {
+        Log.d(TAG, "switching model " + variants.get(active_index).name + " -> " + variants.get(index).name);
+        active_index = index;
+        slow_frames = 0;
+        fast_frames = 0;
+        //the new variant has its own latency profile
+        latency_ema = -1f;
+    }
+
+    private void register_thermal_listener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return;
+        PowerManager power_manager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (power_manager == null) return;
+        thermal_status = power_manager.getCurrentThermalStatus();
+        thermal_listener = status -> thermal_status = status;
+        power_manager.addThermalStatusListener(thermal_listener);
+    }
+
+    public void close() {
+        if (thermal_listener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager power_manager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (power_manager != null) power_manager.removeThermalStatusListener(thermal_listener);
+            thermal_listener = null;
+        }
+        for (Variant variant : variants) {
+            if (variant.release != null) {
+                variant.release.run();
+            } else {
+                variant.model.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.yolosegmentation.models;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs an ONNX YOLOv8(-seg) export through {@code org.opencv.dnn}. It only depends on the OpenCV
+ * Java bindings, so the same backend works on Android and on a plain Linux JVM.
+ *
+ * The ONNX export differs from the TFLite one in two ways which are undone here: box coordinates
+ * are in input pixels instead of normalized, and the mask prototypes are NCHW [1, 32, h, w]
+ * instead of NHWC [1, h, w, 32].
+ */
+public class OpenCvDnnEngine implements InferenceEngine {
+    private final int backend;
+    private final int target;
+    private final int input_width;
+    private final int input_height;
+    private Net net;
+    private List<String> output_names;
+    private int[][] output_shapes;
+    private final List<Mat> results = new ArrayList<>();
+    private ByteBuffer direct_input;
+    private float[] scratch = new float[0];
+
+    public OpenCvDnnEngine(int input_width, int input_height) {
+        this(Dnn.DNN_BACKEND_OPENCV, Dnn.DNN_TARGET_CPU, input_width, input_height);
+    }
+
+    /**
+     * @param backend one of {@code Dnn.DNN_BACKEND_*}
+     * @param target  one of {@code Dnn.DNN_TARGET_*}
+     */
+    public OpenCvDnnEngine(int backend, int target, int input_width, int input_height) {
+        this.backend = backend;
+        this.target = target;
+        this.input_width = input_width;
+        this.input_height = input_height;
+    }
+
+    @Override
+    public void load(ByteBuffer model) throws Exception {
+        ByteBuffer source = model.duplicate();
+        source.rewind();
+        byte[] bytes = new byte[source.remaining()];
+        source.get(bytes);
+        MatOfByte buffer = new MatOfByte(bytes);
+        try {
+            net = Dnn.readNetFromONNX(buffer);
+        } finally {
+            buffer.release();
+        }
+        if (net.empty()) {
+            throw new Exception("unable to read onnx model");
+        }
+        net.setPreferableBackend(backend);
+        net.setPreferableTarget(target);
+
+        //one dry run on a blank frame to learn the output shapes, it also warms up the backend
+        run_net(ByteBuffer.allocateDirect(input_width * input_height * 3 * 4).order(ByteOrder.nativeOrder()));
+        //detections (3 dims) first, mask prototypes (4 dims) second, like the TFLite export
+        final List<String> names = new ArrayList<>(net.getUnconnectedOutLayersNames());
+        final List<Mat> outputs = new ArrayList<>(results);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < outputs.size(); i++) order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(outputs.get(a).dims(), outputs.get(b).dims());
+            }
+        });
+        output_names = new ArrayList<>();
+        output_shapes = new int[outputs.size()][];
+        for (int i = 0; i < order.size(); i++) {
+            Mat mat = outputs.get(order.get(i));
+            output_names.add(names.get(order.get(i)));
+            int[] shape = new int[mat.dims()];
+            for (int d = 0; d < shape.length; d++) shape[d] = mat.size(d);
+            if (shape.length == 4) {
+                //NCHW -> NHWC
+                shape = new int[]{shape[0], shape[2], shape[3], shape[1]};
+            }
+            output_shapes[i] = shape;
+        }
+        release_results();
+    }
+
+    @Override
+    public int[] getInputShape() {
+        return new int[]{1, input_height, input_width, 3};
+    }
+
+    @Override
+    public int getOutputCount() {
+        return output_shapes.length;
+    }
+
+    @Override
+    public int[] getOutputShape(int index) {
+        return output_shapes[index].clone();
+    }
+
+    @Override
+    public void run(ByteBuffer input, Map<Integer, Object> outputs) {
+        run_net(input);
+        try {
+            for (int i = 0; i < output_shapes.length; i++) {
+                Mat mat = results.get(i);
+                if (output_shapes[i].length == 4) {
+                    copy_prototypes(mat, (float[][][][]) outputs.get(i));
+                } else {
+                    copy_detections(mat, (float[][][]) outputs.get(i));
+                }
+            }
+        } finally {
+            release_results();
+        }
+    }
+
+    private void run_net(ByteBuffer input) {
+        if (!input.isDirect()) {
+            if (direct_input == null || direct_input.capacity() < input.remaining()) {
+                direct_input = ByteBuffer.allocateDirect(input.remaining()).order(ByteOrder.nativeOrder());
+            }
+            direct_input.clear();
+            direct_input.put(input.duplicate());
+            direct_input.rewind();
+            input = direct_input;
+        }
+        //the Mat is a view over the NHWC tensor, blobFromImage turns it into NCHW
+        Mat image = new Mat(input_height, input_width, CvType.CV_32FC3, input);
+        Mat blob = Dnn.blobFromImage(image, 1.0, new Size(), new Scalar(0), false, false, CvType.CV_32F);
+        try {
+            net.setInput(blob);
+            results.clear();
+            if (output_names == null) {
+                net.forward(results, net.getUnconnectedOutLayersNames());
+            } else {
+                net.forward(results, output_names);
+            }
+        } finally {
+            image.release();
+            blob.release();
+        }
+    }
+
+    private void copy_detections(Mat mat, float[][][] output) {
+        int rows = output[0].length;
+        int cols = output[0][0].length;
+        float[] flat = flat(mat, rows * cols);
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(flat, r * cols, output[0][r], 0, cols);
+        }
+        //boxes are in input pixels, the post-processing expects them normalized
+        for (int c = 0; c < cols; c++) {
+            output[0][0][c] /= input_width;
+            output[0][1][c] /= input_height;
+            output[0][2][c] /= input_width;
+            output[0][3][c] /= input_height;
+        }
+    }
+
+    private void copy_prototypes(Mat mat, float[][][][] output) {
+        int height = output[0].length;
+        int width = output[0][0].length;
+        int channels = output[0][0][0].length;
+        int plane = height * width;
+        float[] flat = flat(mat, channels * plane);
+        for (int h = 0; h < height; h++) {
+            for (int w = 0; w < width; w++) {
+                float[] pixel = output[0][h][w];
+                int offset = h * width + w;
+                for (int c = 0; c < channels; c++) {
+                    pixel[c] = flat[c * plane + offset];
+                }
+            }
+        }
+    }
+
+    private float[] flat(Mat mat, int length) {
+        if (scratch.length < length) scratch = new float[length];
+        Mat rows = mat.reshape(1, 1);
+        rows.get(0, 0, scratch);
+        rows.release();
+        return scratch;
+    }
+
+    private void release_results() {
+        for (Mat mat : results) mat.release();
+        results.clear();
+    }
+
+    @Override
+    public void close() {
+        release_results();
+        net = null;
+    }
+}
@@ -0,0 +1,529 @@
+package com.example.yolosegmentation.models;
+
+import static java.lang.Math.min;
+
+import com.example.yolosegmentation.utils.MatScope;
+import com.example.yolosegmentation.utils.ScratchMat;
+import com.example.yolosegmentation.utils.StageTimer;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * YOLOv8-seg post-processing: box decoding, NMS, mask assembly, polygon extraction and result
+ * building. It only depends on Java and the OpenCV core/imgproc bindings so it runs unchanged in
+ * the JVM benchmark module.
+ */
+public class PostProcessing {
+    public static final int MASK_WEIGHTS = 32;
+    //x1, y1, x2, y2, score, class, followed by the mask weights
+    public static final int BOX_PREFIX = 6;
+    public static final float SEG_THRESHOLD = 0.3f;
+    //a label map holds at most this many instances, the rest only get polygons
+    public static final int MAX_LABELS = 255;
+    private static final ScratchMat MASK_SCRATCH = new ScratchMat();
+    private static final ScratchMat HIERARCHY_SCRATCH = new ScratchMat();
+
+    /**
+     * Every instance mask of a frame composited into one map at prototype resolution: 0 is
+     * background and n the n-th detection, in score order, so where instances overlap the higher
+     * score wins. x, y, width and height place the map in source pixels, callers that move the
+     * boxes (e.g. a crop) move the map with them.
+     */
+    public static class LabelMap {
+        public final byte[] labels;
+        public final int mask_width;
+        public final int mask_height;
+        public float x, y, width, height;
+
+        public LabelMap(int mask_width, int mask_height, int source_width, int source_height) {
+            this.labels = new byte[mask_width * mask_height];
+            this.mask_width = mask_width;
+            this.mask_height = mask_height;
+            this.width = source_width;
+            this.height = source_height;
+        }
+    }
+
+    /**
+     * Whole segmentation chain on raw outputs, as {@code Yolov8Seg.detect_task} runs it after
+     * inference.
+     *
+     * @param output0     [1, 4 + classes + 32, candidates]
+     * @param output1     [1, mask_height, mask_width, 32] prototypes
+     * @param input_shape [1, height, width, channels] of the model input
+     */
+    public static List<Map<String, Object>> segment(float[][][] output0,
+                                                    float[][][][] output1,
+                                                    int[] input_shape,
+                                                    int source_height,
+                                                    int source_width,
+                                                    float iou_threshold,
+                                                    float conf_threshold,
+                                                    float class_threshold,
+                                                    boolean stretched,
+                                                    Vector<String> labels) {
+        return segment(output0, output1, input_shape, source_height, source_width,
+                iou_threshold, conf_threshold, class_threshold, stretched, labels, false);
+    }
+
+    /**
+     * @param compose_label_map also composites the masks into a {@link LabelMap}, shared by all
+     *                          results under "label_map", each result's index in it is under
+     *                          "instance"
+     */
+    public static List<Map<String, Object>> segment(float[][][] output0,
+                                                    float[][][][] output1,
+                                                    int[] input_shape,
+                                                    int source_height,
+                                                    int source_width,
+                                                    float iou_threshold,
+                                                    float conf_threshold,
+                                                    float class_threshold,
+                                                    boolean stretched,
+                                                    Vector<String> labels,
+                                                    boolean compose_label_map) {
+        int mask_height = output1[0].length;
+        int mask_width = output1[0][0].length;
+        StageTimer timer = StageTimer.getInstance();
+        long start = timer.start(StageTimer.Stage.DECODE);
+        //seg_boxes = coordinates[4]+classes[x=84]+masks_weight[32]
+        //INFO: output from segment model return normalized values
+        List<float[]> seg_boxes = decode_seg_boxes(output0, conf_threshold, class_threshold,
+                input_shape[1], input_shape[2]);
+        timer.stop(StageTimer.Stage.DECODE, start);
+
+        start = timer.start(StageTimer.Stage.NMS);
+        seg_boxes = nms(seg_boxes, iou_threshold);
+        timer.stop(StageTimer.Stage.NMS, start);
+
+        //it only restores the size of the boxes, nothing has been done with mask_weight
+        seg_boxes = restore_size(seg_boxes, input_shape[1], input_shape[2], source_width, source_height, stretched);
+        List<List<Map<String, Double>>> polygons = new ArrayList<>();
+        LabelMap label_map = compose_label_map && !seg_boxes.isEmpty()
+                ? new LabelMap(mask_width, mask_height, source_width, source_height) : null;
+        long mask_ns = 0, contour_ns = 0;
+        long mask_bytes = 0, contour_bytes = 0;
+        for (int i = 0; i < seg_boxes.size(); i++) {
+            float[] box = seg_boxes.get(i);
+            start = timer.now();
+            long bytes_start = timer.allocated_bytes();
+            byte[] mask = compute_mask(box, output1[0], SEG_THRESHOLD, mask_height, mask_width);
+            if (label_map != null && i < MAX_LABELS) {
+                add_to_label_map(label_map, mask, box, i + 1, source_height, source_width);
+            }
+            long middle = timer.now();
+            long bytes_middle = timer.allocated_bytes();
+            polygons.add(mask_to_polygon(mask, mask_height, mask_width, box, source_height, source_width));
+            mask_ns += middle - start;
+            contour_ns += timer.now() - middle;
+            mask_bytes += bytes_middle - bytes_start;
+            contour_bytes += timer.allocated_bytes() - bytes_middle;
+        }
+        //per frame totals, one sample per frame like the other stages
+        boolean tracked = timer.allocated_bytes() >= 0;
+        timer.record(StageTimer.Stage.MASK, mask_ns, tracked ? mask_bytes : -1);
+        timer.record(StageTimer.Stage.CONTOUR, contour_ns, tracked ? contour_bytes : -1);
+        return build_results(seg_boxes, polygons, labels, label_map);
+    }
+
+    /**
+     * {@link #decode_seg_boxes} followed by {@link #nms}.
+     */
+    public static List<float[]> filter_seg_boxes(float[][][] model_outputs, float iou_threshold,
+                                                 float conf_threshold, float class_threshold,
+                                                 float input_width, float input_height) {
+        return nms(decode_seg_boxes(model_outputs, conf_threshold, class_threshold, input_width, input_height),
+                iou_threshold);
+    }
+
+    /**
+     * Decodes the [1, 4 + classes + 32, candidates] segmentation output into
+     * [x1, y1, x2, y2, score, class, mask weights...] boxes in input pixels above the class
+     * threshold, sorted by score.
+     */
+    public static List<float[]> decode_seg_boxes(float[][][] model_outputs,
+                                                 float conf_threshold, float class_threshold,
+                                                 float input_width, float input_height) {
+        //model_outputs = [1,box+class+mask_weight,detected_box]
+        List<float[]> pre_box = new ArrayList<>();
+        int class_index = 4;
+        int dimension = model_outputs[0][0].length;
+        int rows = model_outputs[0].length;
+        int index_mask = rows - MASK_WEIGHTS;
+        int max_index = 0;
+        float max = 0f;
+        for (int i = 0; i < dimension; i++) {
+            max_index = class_index;
+            max = model_outputs[0][max_index][i];
+
+            for (int j = class_index + 1; j < index_mask; j++) {
+                float current = model_outputs[0][j][i];
+                if (current > max) {
+                    max = current;
+                    max_index = j;
+                }
+            }
+
+            if (max > class_threshold) {
+                // Convertir xywh a xyxy y ajustar por el ancho y alto de entrada
+                float[] tmp = new float[BOX_PREFIX + MASK_WEIGHTS];
+                tmp[0] = (model_outputs[0][0][i] - model_outputs[0][2][i] / 2f) * input_width;
+                tmp[1] = (model_outputs[0][1][i] - model_outputs[0][3][i] / 2f) * input_height;
+                tmp[2] = (model_outputs[0][0][i] + model_outputs[0][2][i] / 2f) * input_width;
+                tmp[3] = (model_outputs[0][1][i] + model_outputs[0][3][i] / 2f) * input_height;
+                tmp[4] = max;
+                tmp[5] = (max_index - class_index) * 1f;
+                for (int j = index_mask; j < rows; j++) {
+                    tmp[j - index_mask + BOX_PREFIX] = model_outputs[0][j][i];
+                }
+                pre_box.add(tmp);
+            }
+        }
+        if (pre_box.isEmpty()) return pre_box;
+        //for reverse orden, insteand of using .reversed method
+        Comparator<float[]> compareValues = (v1, v2) -> Float.compare(v2[4], v1[4]);
+        Collections.sort(pre_box, compareValues);
+        return pre_box;
+    }
+
+    /**
+     * Greedy class-agnostic NMS over boxes sorted by descending score.
+     */
+    public static List<float[]> nms(List<float[]> boxes, float iou_threshold) {
+        List<float[]> filteredBoxes = new ArrayList<>(boxes); // Create a copy of the input list
+
+        for (int i = 0; i < filteredBoxes.size(); i++) {
+            float[] box = filteredBoxes.get(i);
+            for (int j = i + 1; j < filteredBoxes.size(); j++) {
+                float[] next_box = filteredBoxes.get(j);
+                float x1 = Math.max(next_box[0], box[0]);
+                float y1 = Math.max(next_box[1], box[1]);
+                float x2 = Math.min(next_box[2], box[2]);
+                float y2 = Math.min(next_box[3], box[3]);
+
+                float width = Math.max(0, x2 - x1);
+                float height = Math.max(0, y2 - y1);
+
+                float intersection = width * height;
+                float union = (next_box[2] - next_box[0]) * (next_box[3] - next_box[1])
+                        + (box[2] - box[0]) * (box[3] - box[1]) - intersection;
+                float iou = intersection / union;
+                if (iou > iou_threshold) {
+                    filteredBoxes.remove(j);
+                    j--;
+                }
+            }
+        }
+        return filteredBoxes;
+    }
+
+    /**
+     * Maps boxes from input pixels to source pixels, see {@link Yolo#detect_task} for
+     * {@code stretched}.
+     */
+    public static List<float[]> restore_size(List<float[]> nms,
+                                             int input_width,
+                                             int input_height,
+                                             int src_width,
+                                             int src_height,
+                                             boolean stretched) {
+        //restore size after scaling, larger images or any stretched input
+        if (stretched || src_width > input_width || src_height > input_height) {
+            float gainx = src_width / (float) input_width;
+            float gainy = src_height / (float) input_height;
+            for (int i = 0; i < nms.size(); i++) {
+                nms.get(i)[0] = min(src_width, Math.max(nms.get(i)[0] * gainx, 0));
+                nms.get(i)[1] = min(src_height, Math.max(nms.get(i)[1] * gainy, 0));
+                nms.get(i)[2] = min(src_width, Math.max(nms.get(i)[2] * gainx, 0));
+                nms.get(i)[3] = min(src_height, Math.max(nms.get(i)[3] * gainy, 0));
+            }
+            //restore size after padding, smaller images
+        } else {
+            float padx = (src_width - input_width) / 2f;
+            float pady = (src_height - input_height) / 2f;
+            for (int i = 0; i < nms.size(); i++) {
+                nms.get(i)[0] = min(src_width, Math.max(nms.get(i)[0] + padx, 0));
+                nms.get(i)[1] = min(src_height, Math.max(nms.get(i)[1] + pady, 0));
+                nms.get(i)[2] = min(src_width, Math.max(nms.get(i)[2] + padx, 0));
+                nms.get(i)[3] = min(src_height, Math.max(nms.get(i)[3] + pady, 0));
+            }
+        }
+        return nms;
+    }
+
+    /**
+     * Combines the prototypes with the mask weights of {@code box} into a binary mask (0 or 255
+     * per pixel) at prototype resolution.
+     */
+    public static byte[] compute_mask(float[] box,
+                                      float[][][] masks_protos,
+                                      float seg_thresh,
+                                      int mask_height,
+                                      int mask_width) {
+        int numMask = box.length - BOX_PREFIX;
+        //sigmoid(sum) > seg_thresh is the same test as sum > logit(seg_thresh)
+        float logit = (float) Math.log(seg_thresh / (1.0 - seg_thresh));
+        byte[] mask = new byte[mask_height * mask_width];
+        int index = 0;
+        for (int h = 0; h < mask_height; h++) {
+            for (int w = 0; w < mask_width; w++) {
+                float[] protos = masks_protos[h][w];
+                float sum = 0.0f;
+                for (int j = 0; j < numMask; j++) {
+                    sum += box[j + BOX_PREFIX] * protos[j];
+                }
+                mask[index++] = sum > logit ? (byte) 255 : 0;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Largest contour of the mask inside the box, scaled to source pixels and relative to the
+     * top left corner of the box. Empty when the box covers no mask pixel.
+     */
+    public static List<Map<String, Double>> mask_to_polygon(byte[] mask,
+                                                            int mask_height,
+                                                            int mask_width,
+                                                            float[] box,
+                                                            int source_height,
+                                                            int source_width) {
+        float x1 = min(mask_width, Math.max(box[0] * mask_width / source_width, 0));
+        float y1 = min(mask_height, Math.max(box[1] * mask_height / source_height, 0));
+        float x2 = min(mask_width, Math.max(box[2] * mask_width / source_width, 0));
+        float y2 = min(mask_height, Math.max(box[3] * mask_height / source_height, 0));
+        int x = Math.max((int) x1, 0);
+        int y = Math.max((int) y1, 0);
+        int width = Math.min(Math.abs((int) (x2 - x1)), mask_width - x);
+        int height = Math.min(Math.abs((int) (y2 - y1)), mask_height - y);
+        List<Map<String, Double>> convertedPolygon = new ArrayList<>();
+        if (width <= 0 || height <= 0) return convertedPolygon;
+
+        try (MatScope scope = new MatScope()) {
+            //same size every frame, the native buffer is reused
+            Mat maskMat = MASK_SCRATCH.get(mask_height, mask_width, CvType.CV_8UC1);
+            maskMat.put(0, 0, mask);
+            Mat crop = scope.track(maskMat.submat(y, y + height, x, x + width));
+            List<MatOfPoint> contours = scope.list();
+            Imgproc.findContours(crop, contours, HIERARCHY_SCRATCH.get(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+
+            MatOfPoint largestContour = null;
+            double largestArea = 0;
+            for (MatOfPoint contour : contours) {
+                double area = Imgproc.contourArea(contour);
+                if (largestContour == null || area > largestArea) {
+                    largestArea = area;
+                    largestContour = contour;
+                }
+            }
+            if (largestContour == null) return convertedPolygon;
+
+            double scale_x = (double) source_width / mask_width;
+            double scale_y = (double) source_height / mask_height;
+            for (Point point : largestContour.toArray()) {
+                Map<String, Double> pointMap = new HashMap<>();
+                pointMap.put("x", point.x * scale_x);
+                pointMap.put("y", point.y * scale_y);
+                convertedPolygon.add(pointMap);
+            }
+            return convertedPolygon;
+        }
+    }
+
+    /**
+     * Writes {@code label} into the map where the mask is set inside the box, leaving pixels
+     * already claimed by a higher scoring instance alone.
+     */
+    public static void add_to_label_map(LabelMap label_map,
+                                        byte[] mask,
+                                        float[] box,
+                                        int label,
+                                        int source_height,
+                                        int source_width) {
+        int mask_width = label_map.mask_width;
+        int mask_height = label_map.mask_height;
+        //same crop as mask_to_polygon, so both overlays cover the same pixels
+        float x1 = min(mask_width, Math.max(box[0] * mask_width / source_width, 0));
+        float y1 = min(mask_height, Math.max(box[1] * mask_height / source_height, 0));
+        float x2 = min(mask_width, Math.max(box[2] * mask_width / source_width, 0));
+        float y2 = min(mask_height, Math.max(box[3] * mask_height / source_height, 0));
+        int x = Math.max((int) x1, 0);
+        int y = Math.max((int) y1, 0);
+        int width = Math.min(Math.abs((int) (x2 - x1)), mask_width - x);
+        int height = Math.min(Math.abs((int) (y2 - y1)), mask_height - y);
+        byte value = (byte) label;
+        byte[] labels = label_map.labels;
+        for (int row = y; row < y + height; row++) {
+            int index = row * mask_width + x;
+            for (int end = index + width; index < end; index++) {
+                if (mask[index] != 0 && labels[index] == 0) labels[index] = value;
+            }
+        }
+    }
+
+    public static List<Map<String, Object>> build_results(List<float[]> yolo_result,
+                                                          List<List<Map<String, Double>>> polygons,
+                                                          Vector<String> labels) {
+        return build_results(yolo_result, polygons, labels, null);
+    }
+
+    public static List<Map<String, Object>> build_results(List<float[]> yolo_result,
+                                                          List<List<Map<String, Double>>> polygons,
+                                                          Vector<String> labels,
+                                                          LabelMap label_map) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int i = 0; i < yolo_result.size(); i++) {
+            float[] box = yolo_result.get(i);
+            Map<String, Object> output = new HashMap<>();
+            output.put("box", new float[]{box[0], box[1], box[2], box[3], box[4]}); //x1,y1,x2,y2,conf_class
+            output.put("polygons", polygons.get(i));
+            output.put("tag", labels.get((int) box[5]));
+            if (label_map != null && i < MAX_LABELS) {
+                output.put("label_map", label_map);
+                output.put("instance", i + 1);
+            }
+            result.add(output);
+        }
+        return result;
+    }
+
+    /**
+     * Scales results computed on a resized image (e.g. a subsampled decode) to the original image.
+     */
+    public static void scale_results(List<Map<String, Object>> results, float scale_x, float scale_y) {
+        if (scale_x == 1f && scale_y == 1f) return;
+        LabelMap label_map = null;
+        for (Map<String, Object> result : results) {
+            float[] box = (float[]) result.get("box");
+            box[0] *= scale_x;
+            box[1] *= scale_y;
+            box[2] *= scale_x;
+            box[3] *= scale_y;
+            @SuppressWarnings("unchecked")
+            List<Map<String, Double>> polygon = (List<Map<String, Double>>) result.get("polygons");
+            if (polygon != null) {
+                for (Map<String, Double> vertex : polygon) {
+                    vertex.put("x", vertex.get("x") * scale_x);
+                    vertex.put("y", vertex.get("y") * scale_y);
+                }
+            }
+            LabelMap map = (LabelMap) result.get("label_map");
+            //shared by the detections of a frame, scaled once
+            if (map != null && map != label_map) {
+                label_map = map;
+                map.x *= scale_x;
+                map.y *= scale_y;
+                map.width *= scale_x;
+                map.height *= scale_y;
+            }
+        }
+    }
+
+    /**
+     * Maps results computed on a frame in sensor orientation to the frame rotated clockwise by
+     * {@code rotation} degrees (a multiple of 90), for models that run on the unrotated frame.
+     * Boxes, polygons and the shared label map are rotated in place of the pixels.
+     */
+    public static void rotate_results(List<Map<String, Object>> results, int rotation,
+                                      int source_width, int source_height) {
+        rotation = ((rotation % 360) + 360) % 360;
+        if (rotation == 0) return;
+        float[] point = new float[2];
+        LabelMap label_map = null;
+        LabelMap rotated_map = null;
+        for (Map<String, Object> result : results) {
+            float[] box = (float[]) result.get("box");
+            float left = box[0], top = box[1];
+            rotate_point(box[0], box[1], rotation, source_width, source_height, point);
+            float x1 = point[0], y1 = point[1];
+            rotate_point(box[2], box[3], rotation, source_width, source_height, point);
+            box[0] = Math.min(x1, point[0]);
+            box[1] = Math.min(y1, point[1]);
+            box[2] = Math.max(x1, point[0]);
+            box[3] = Math.max(y1, point[1]);
+            //polygon points are relative to the box corner, which moved
+            @SuppressWarnings("unchecked")
+            List<Map<String, Double>> polygon = (List<Map<String, Double>>) result.get("polygons");
+            if (polygon != null) {
+                for (Map<String, Double> vertex : polygon) {
+                    rotate_point(left + vertex.get("x").floatValue(), top + vertex.get("y").floatValue(),
+                            rotation, source_width, source_height, point);
+                    vertex.put("x", (double) (point[0] - box[0]));
+                    vertex.put("y", (double) (point[1] - box[1]));
+                }
+            }
+            LabelMap map = (LabelMap) result.get("label_map");
+            if (map != null) {
+                //shared by the detections of a frame, rotated once
+                if (map != label_map) {
+                    label_map = map;
+                    rotated_map = rotate_label_map(map, rotation, source_width, source_height);
+                }
+                result.put("label_map", rotated_map);
+            }
+        }
+    }
+
+    /**
+     * Point of a source of that size in the source rotated clockwise by {@code rotation}.
+     */
+    static void rotate_point(float x, float y, int rotation, int source_width, int source_height, float[] out) {
+        if (rotation == 90) {
+            out[0] = source_height - y;
+            out[1] = x;
+        } else if (rotation == 180) {
+            out[0] = source_width - x;
+            out[1] = source_height - y;
+        } else if (rotation == 270) {
+            out[0] = y;
+            out[1] = source_width - x;
+        } else {
+            out[0] = x;
+            out[1] = y;
+        }
+    }
+
+    static LabelMap rotate_label_map(LabelMap map, int rotation, int source_width, int source_height) {
+        boolean swap = rotation != 180;
+        int width = map.mask_width;
+        int height = map.mask_height;
+        LabelMap rotated = new LabelMap(swap ? height : width, swap ? width : height, 0, 0);
+        byte[] labels = rotated.labels;
+        int index = 0;
+        for (int row = 0; row < rotated.mask_height; row++) {
+            for (int col = 0; col < rotated.mask_width; col++) {
+                //same mappings as the pixels of the frame, at mask resolution
+                int source;
+                if (rotation == 90) {
+                    source = (height - 1 - col) * width + row;
+                } else if (rotation == 180) {
+                    source = (height - 1 - row) * width + (width - 1 - col);
+                } else {
+                    source = col * width + (width - 1 - row);
+                }
+                labels[index++] = map.labels[source];
+            }
+        }
+        float[] point = new float[2];
+        rotate_point(map.x, map.y, rotation, source_width, source_height, point);
+        float x1 = point[0], y1 = point[1];
+        rotate_point(map.x + map.width, map.y + map.height, rotation, source_width, source_height, point);
+        rotated.x = Math.min(x1, point[0]);
+        rotated.y = Math.min(y1, point[1]);
+        rotated.width = Math.abs(point[0] - x1);
+        rotated.height = Math.abs(point[1] - y1);
+        return rotated;
+    }
+}
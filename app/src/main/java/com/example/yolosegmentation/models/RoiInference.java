@@ -0,0 +1,239 @@
+package com.example.yolosegmentation.models;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import com.example.yolosegmentation.utils.StageTimer;
+import com.example.yolosegmentation.utils.TensorSampler;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the model on a zoomed crop around what is being tracked instead of the whole frame.
+ *
+ * The first frame, and every {@code refresh_interval} frames after it, is a full-frame pass that
+ * finds new objects. In between, the crop is the union of the last detected boxes (or the ROI
+ * picked by the user) grown by a margin and matched to the model aspect ratio, so small distant
+ * targets get more input pixels for the same inference cost. Detections are mapped back to frame
+ * coordinates before they are returned.
+ *
+ * Frames can be passed in sensor orientation with the rotation that makes them upright. By default
+ * the sampler reads the frame in rotated order, so the model sees an upright input and nothing is
+ * rotated per frame. Models that detect equally well on a sideways input can instead run on the
+ * frame as it is ({@link #setRotateOutputs}), and only the detections are rotated. Either way
+ * detections, {@link #setUserRoi} and {@link #getRegion} are in upright frame coordinates.
+ */
+public class RoiInference {
+    private final TensorSampler sampler = new TensorSampler();
+    private ByteBuffer input;
+    private int input_width;
+    private int input_height;
+
+    private int refresh_interval = 15;
+    //fraction of the tracked box size added on every side
+    private float margin = 0.25f;
+    //a crop is never smaller than the input divided by this factor
+    private float max_zoom = 2f;
+    //run on the frame in sensor orientation and rotate the detections instead of the input
+    private volatile boolean rotate_outputs = false;
+
+    private final Rect tracked = new Rect();
+    private boolean has_tracked = false;
+    private Rect user_roi;
+    private int frames_since_full = 0;
+    private final Rect region = new Rect();
+    private final Rect upright_region = new Rect();
+    //user ROI in the orientation the model sees
+    private final Rect roi = new Rect();
+
+    public RoiInference setRefreshInterval(int refresh_interval) {
+        this.refresh_interval = refresh_interval;
+        return this;
+    }
+
+    public RoiInference setMargin(float margin) {
+        this.margin = margin;
+        return this;
+    }
+
+    public RoiInference setMaxZoom(float max_zoom) {
+        this.max_zoom = Math.max(1f, max_zoom);
+        return this;
+    }
+
+    /**
+     * Runs the model on the unrotated frame and rotates the detections, for models that tolerate
+     * sideways inputs. Tracking state is dropped since it was kept in the other orientation.
+     */
+    public synchronized RoiInference setRotateOutputs(boolean rotate_outputs) {
+        if (this.rotate_outputs != rotate_outputs) reset();
+        this.rotate_outputs = rotate_outputs;
+        return this;
+    }
+
+    /**
+     * Pins inference to a region chosen by the user, in upright frame coordinates. Pass null to go back
+     * to following the detections.
+     */
+    public synchronized void setUserRoi(Rect roi) {
+        this.user_roi = roi == null ? null : new Rect(roi);
+    }
+
+    /**
+     * Forgets the tracked objects, the next frame runs on the full frame.
+     */
+    public synchronized void reset() {
+        has_tracked = false;
+        frames_since_full = 0;
+    }
+
+    /**
+     * Region of the frame the last call to {@link #detect} ran on.
+     */
+    public Rect getRegion() {
+        return upright_region;
+    }
+
+    public List<Map<String, Object>> detect(Yolo model, Bitmap frame,
+                                            float iou_threshold,
+                                            float conf_threshold,
+                                            float class_threshold) throws Exception {
+        return detect(model, frame, 0, iou_threshold, conf_threshold, class_threshold);
+    }
+
+    /**
+     * @param frame    in sensor orientation
+     * @param rotation clockwise degrees, a multiple of 90, that make the frame upright
+     */
+    public List<Map<String, Object>> detect(Yolo model, Bitmap frame, int rotation,
+                                            float iou_threshold,
+                                            float conf_threshold,
+                                            float class_threshold) throws Exception {
+        rotation = ((rotation % 360) + 360) % 360;
+        boolean rotate_outputs = this.rotate_outputs;
+        int[] shape = model.getInputShape();
+        if (input == null || input_height != shape[1] || input_width != shape[2]) {
+            input_height = shape[1];
+            input_width = shape[2];
+            input = TensorSampler.allocateInput(input_width, input_height);
+        }
+        //the frame as the model sees it, regions and tracking live in these coordinates
+        boolean swap = !rotate_outputs && rotation % 180 != 0;
+        int width = swap ? frame.getHeight() : frame.getWidth();
+        int height = swap ? frame.getWidth() : frame.getHeight();
+        boolean full_frame = next_region(width, height, rotate_outputs ? rotation : 0);
+
+        long start = StageTimer.getInstance().start(StageTimer.Stage.PREPROCESS);
+        sampler.sample(frame, rotate_outputs ? 0 : rotation, region.left, region.top, region.width(), region.height(),
+                input, input_width, input_height, 0, 255);
+        StageTimer.getInstance().stop(StageTimer.Stage.PREPROCESS, start);
+        List<Map<String, Object>> detections = model.detect_task(input, region.height(), region.width(),
+                iou_threshold, conf_threshold, class_threshold, true);
+
+        int tracked_left = Integer.MAX_VALUE, tracked_top = Integer.MAX_VALUE;
+        int tracked_right = Integer.MIN_VALUE, tracked_bottom = Integer.MIN_VALUE;
+        for (Map<String, Object> detection : detections) {
+            //polygons are relative to their box, only the box goes through the crop transform
+            float[] box = (float[]) detection.get("box");
+            box[0] += region.left;
+            box[1] += region.top;
+            box[2] += region.left;
+            box[3] += region.top;
+            tracked_left = Math.min(tracked_left, (int) box[0]);
+            tracked_top = Math.min(tracked_top, (int) box[1]);
+            tracked_right = Math.max(tracked_right, (int) Math.ceil(box[2]));
+            tracked_bottom = Math.max(tracked_bottom, (int) Math.ceil(box[3]));
+        }
+        if (!detections.isEmpty()) {
+            //shared by all detections of the frame, moved once
+            PostProcessing.LabelMap label_map = (PostProcessing.LabelMap) detections.get(0).get("label_map");
+            if (label_map != null) {
+                label_map.x += region.left;
+                label_map.y += region.top;
+            }
+        }
+        synchronized (this) {
+            has_tracked = !detections.isEmpty();
+            if (has_tracked) tracked.set(tracked_left, tracked_top, tracked_right, tracked_bottom);
+            frames_since_full = full_frame ? 1 : frames_since_full + 1;
+        }
+        if (rotate_outputs) {
+            PostProcessing.rotate_results(detections, rotation, width, height);
+            rotate_rect(region, rotation, width, height, upright_region);
+        } else {
+            upright_region.set(region);
+        }
+        return detections;
+    }
+
+    /**
+     * Picks the region for the next inference, returns true when it is the full frame.
+     *
+     * @param rotation of the upright frame relative to the one the model sees, the user ROI is
+     *                 brought back by the opposite rotation
+     */
+    private synchronized boolean next_region(int width, int height, int rotation) {
+        Rect target;
+        if (user_roi != null) {
+            boolean swap = rotation % 180 != 0;
+            rotate_rect(user_roi, 360 - rotation, swap ? height : width, swap ? width : height, roi);
+            target = roi;
+        } else if (!has_tracked || frames_since_full >= refresh_interval) {
+            region.set(0, 0, width, height);
+            return true;
+        } else {
+            target = tracked;
+        }
+
+        float margin_x = target.width() * margin;
+        float margin_y = target.height() * margin;
+        float crop_width = target.width() + 2 * margin_x;
+        float crop_height = target.height() + 2 * margin_y;
+        //match the model aspect ratio so the crop isn't distorted by the resize
+        float aspect = input_width / (float) input_height;
+        if (crop_width / crop_height < aspect) {
+            crop_width = crop_height * aspect;
+        } else {
+            crop_height = crop_width / aspect;
+        }
+        float min_width = input_width / max_zoom;
+        if (crop_width < min_width) {
+            crop_width = min_width;
+            crop_height = min_width / aspect;
+        }
+        crop_width = Math.min(crop_width, width);
+        crop_height = Math.min(crop_height, height);
+
+        float center_x = target.exactCenterX();
+        float center_y = target.exactCenterY();
+        int left = (int) Math.max(0, Math.min(center_x - crop_width / 2f, width - crop_width));
+        int top = (int) Math.max(0, Math.min(center_y - crop_height / 2f, height - crop_height));
+        region.set(left, top, left + (int) crop_width, top + (int) crop_height);
+        if (region.width() >= width && region.height() >= height) {
+            region.set(0, 0, width, height);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@code rect} of a frame of that size in the frame rotated clockwise by {@code rotation}.
+     */
+    private static void rotate_rect(Rect rect, int rotation, int width, int height, Rect out) {
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                out.set(height - rect.bottom, rect.left, height - rect.top, rect.right);
+                break;
+            case 180:
+                out.set(width - rect.right, height - rect.bottom, width - rect.left, height - rect.top);
+                break;
+            case 270:
+                out.set(rect.top, width - rect.right, rect.bottom, width - rect.left);
+                break;
+            default:
+                out.set(rect);
+        }
+    }
+}
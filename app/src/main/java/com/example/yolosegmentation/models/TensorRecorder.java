@@ -0,0 +1,207 @@
+package com.example.yolosegmentation.models;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Captures the model input and raw outputs of selected frames into a memory-mapped file, so
+ * field problems can be replayed through the post-processing with {@link TensorReplay}, without
+ * the model or the camera.
+ *
+ * File layout, little endian:
+ * <pre>
+ * header: int MAGIC, int VERSION
+ * record: int RECORD_MAGIC, int size of the rest of the record in bytes,
+ *         long timestamp_ms, int source_height, int source_width,
+ *         float iou_threshold, float conf_threshold, float class_threshold, int stretched,
+ *         int metadata bytes, utf-8 metadata padded to 4 bytes,
+ *         int tensor count, then per tensor: int type, int rank, int[rank] shape, data
+ * </pre>
+ * The first tensor is the input, the others are the outputs in model order. Nothing is recorded
+ * unless {@link #capture(int)} or {@link #setCaptureEvery(int)} selects frames.
+ */
+public class TensorRecorder implements Closeable {
+    static final int MAGIC = 0x59534731;
+    static final int VERSION = 1;
+    static final int RECORD_MAGIC = 0x46524d31;
+    static final int TYPE_FLOAT32 = 0;
+    static final int TYPE_UINT8 = 1;
+    //the file is mapped in chunks of at least this size, a 640x640 frame is ~12MB
+    private static final long CHUNK_BYTES = 32L << 20;
+
+    private final File file;
+    private final RandomAccessFile random_access_file;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long region_start;
+    private long position;
+    private boolean closed = false;
+
+    private int frames_to_capture = 0;
+    private int capture_every = 0;
+    private long frame_counter = 0;
+    private long max_bytes = 512L << 20;
+    private int recorded_frames = 0;
+
+    public TensorRecorder(File file) throws IOException {
+        this.file = file;
+        this.random_access_file = new RandomAccessFile(file, "rw");
+        this.channel = random_access_file.getChannel();
+        channel.truncate(0);
+        ensure(8);
+        region.putInt(MAGIC);
+        region.putInt(VERSION);
+        position = 8;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Records one frame out of {@code every}, 0 turns periodic capture off.
+     */
+    public synchronized TensorRecorder setCaptureEvery(int every) {
+        this.capture_every = Math.max(0, every);
+        return this;
+    }
+
+    /**
+     * Records the next {@code frames} frames, on top of the periodic capture.
+     */
+    public synchronized void capture(int frames) {
+        this.frames_to_capture += frames;
+    }
+
+    /**
+     * Recording stops once the file reaches this size.
+     */
+    public synchronized TensorRecorder setMaxBytes(long max_bytes) {
+        this.max_bytes = max_bytes;
+        return this;
+    }
+
+    public synchronized int getRecordedFrames() {
+        return recorded_frames;
+    }
+
+    /**
+     * Called once per frame, returns true when this frame has to be recorded.
+     */
+    public synchronized boolean should_record() {
+        if (closed || position >= max_bytes) return false;
+        frame_counter++;
+        if (frames_to_capture > 0) {
+            frames_to_capture--;
+            return true;
+        }
+        return capture_every > 0 && frame_counter % capture_every == 0;
+    }
+
+    /**
+     * @param input         model input, read from 0 to its capacity, its position is not changed
+     * @param outputs       float arrays filled by the engine, indexed like the model outputs
+     * @param output_shapes shape of every output
+     */
+    public synchronized void record(ByteBuffer input, int[] input_shape,
+                                    Map<Integer, Object> outputs, int[][] output_shapes,
+                                    int source_height, int source_width,
+                                    float iou_threshold, float conf_threshold, float class_threshold,
+                                    boolean stretched, String metadata) throws IOException {
+        if (closed) return;
+        long elements = 1;
+        for (int dimension : input_shape) elements *= dimension;
+        int input_type = input.capacity() >= elements * 4 ? TYPE_FLOAT32 : TYPE_UINT8;
+        int input_bytes = (int) (input_type == TYPE_FLOAT32 ? elements * 4 : elements);
+
+        byte[] metadata_bytes = (metadata == null ? "" : metadata).getBytes(StandardCharsets.UTF_8);
+        int metadata_padded = (metadata_bytes.length + 3) & ~3;
+        long size = 8 + 4 * 2 + 4 * 4 + 4 + metadata_padded + 4 + tensor_header_bytes(input_shape) + input_bytes;
+        for (int[] shape : output_shapes) {
+            long output_elements = 1;
+            for (int dimension : shape) output_elements *= dimension;
+            size += tensor_header_bytes(shape) + output_elements * 4;
+        }
+
+        ensure(8 + size);
+        region.putInt(RECORD_MAGIC);
+        region.putInt((int) size);
+        region.putLong(System.currentTimeMillis());
+        region.putInt(source_height);
+        region.putInt(source_width);
+        region.putFloat(iou_threshold);
+        region.putFloat(conf_threshold);
+        region.putFloat(class_threshold);
+        region.putInt(stretched ? 1 : 0);
+        region.putInt(metadata_bytes.length);
+        region.put(metadata_bytes);
+        for (int i = metadata_bytes.length; i < metadata_padded; i++) region.put((byte) 0);
+        region.putInt(1 + output_shapes.length);
+
+        put_tensor_header(input_type, input_shape);
+        ByteBuffer source = input.duplicate();
+        source.position(0).limit(input_bytes);
+        region.put(source);
+
+        for (int i = 0; i < output_shapes.length; i++) {
+            put_tensor_header(TYPE_FLOAT32, output_shapes[i]);
+            put_floats(outputs.get(i));
+        }
+        position += 8 + size;
+        recorded_frames++;
+    }
+
+    private static long tensor_header_bytes(int[] shape) {
+        return 4 + 4 + 4L * shape.length;
+    }
+
+    private void put_tensor_header(int type, int[] shape) {
+        region.putInt(type);
+        region.putInt(shape.length);
+        for (int dimension : shape) region.putInt(dimension);
+    }
+
+    //walks nested float arrays (float[][]..., any rank) in row-major order
+    private void put_floats(Object array) {
+        if (array instanceof float[]) {
+            float[] row = (float[]) array;
+            ByteBuffer slice = region.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slice.asFloatBuffer().put(row);
+            region.position(region.position() + row.length * 4);
+            return;
+        }
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            put_floats(Array.get(array, i));
+        }
+    }
+
+    //maps a region that can hold the next bytes_needed bytes at the current position
+    private void ensure(long bytes_needed) throws IOException {
+        if (region != null && position + bytes_needed <= region_start + region.capacity()) return;
+        region_start = position;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, region_start, Math.max(CHUNK_BYTES, bytes_needed));
+        region.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (region != null) region.force();
+        region = null;
+        //drops the unused tail of the last mapped chunk
+        channel.truncate(position);
+        channel.close();
+        random_access_file.close();
+    }
+}
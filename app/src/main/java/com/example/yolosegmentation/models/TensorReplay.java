@@ -0,0 +1,162 @@
+package com.example.yolosegmentation.models;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Reads a capture written by {@link TensorRecorder} and runs its frames through the
+ * post-processing, with the thresholds they were recorded with. It has no Android dependency,
+ * the benchmark module uses it to replay captures from the field on the CI box.
+ */
+public class TensorReplay implements Closeable {
+
+    public static class Frame {
+        public long timestamp_ms;
+        public int source_height;
+        public int source_width;
+        public float iou_threshold;
+        public float conf_threshold;
+        public float class_threshold;
+        public boolean stretched;
+        public String metadata;
+        public int[] input_shape;
+        //TensorRecorder.TYPE_FLOAT32 or TYPE_UINT8
+        public int input_type;
+        //read only view over the file
+        public ByteBuffer input;
+        public int[][] output_shapes;
+        //float arrays shaped like the engine outputs, indexed like the model outputs
+        public Map<Integer, Object> outputs;
+    }
+
+    private final RandomAccessFile random_access_file;
+    private final MappedByteBuffer buffer;
+    private final List<Integer> offsets = new ArrayList<>();
+
+    public TensorReplay(File file) throws Exception {
+        random_access_file = new RandomAccessFile(file, "r");
+        FileChannel channel = random_access_file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 8 || buffer.getInt(0) != TensorRecorder.MAGIC) {
+            throw new Exception("not a tensor capture: " + file);
+        }
+        if (buffer.getInt(4) != TensorRecorder.VERSION) {
+            throw new Exception("unsupported capture version " + buffer.getInt(4));
+        }
+        //index the records, a truncated last record (e.g. the app was killed) is ignored
+        int offset = 8;
+        while (offset + 8 <= buffer.limit() && buffer.getInt(offset) == TensorRecorder.RECORD_MAGIC) {
+            int size = buffer.getInt(offset + 4);
+            if (size <= 0 || (long) offset + 8 + size > buffer.limit()) break;
+            offsets.add(offset);
+            offset += 8 + size;
+        }
+    }
+
+    public int size() {
+        return offsets.size();
+    }
+
+    public Frame get(int index) {
+        ByteBuffer record = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        record.position(offsets.get(index) + 8);
+        Frame frame = new Frame();
+        frame.timestamp_ms = record.getLong();
+        frame.source_height = record.getInt();
+        frame.source_width = record.getInt();
+        frame.iou_threshold = record.getFloat();
+        frame.conf_threshold = record.getFloat();
+        frame.class_threshold = record.getFloat();
+        frame.stretched = record.getInt() != 0;
+        int metadata_length = record.getInt();
+        byte[] metadata = new byte[metadata_length];
+        record.get(metadata);
+        frame.metadata = new String(metadata, StandardCharsets.UTF_8);
+        record.position(record.position() + (((metadata_length + 3) & ~3) - metadata_length));
+
+        int tensors = record.getInt();
+        frame.input_type = record.getInt();
+        frame.input_shape = read_shape(record);
+        int input_bytes = elements(frame.input_shape) * (frame.input_type == TensorRecorder.TYPE_FLOAT32 ? 4 : 1);
+        ByteBuffer input = record.slice();
+        input.limit(input_bytes);
+        frame.input = input.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        record.position(record.position() + input_bytes);
+
+        frame.output_shapes = new int[tensors - 1][];
+        frame.outputs = new HashMap<>();
+        for (int i = 0; i < tensors - 1; i++) {
+            record.getInt(); //outputs are always float32
+            int[] shape = read_shape(record);
+            frame.output_shapes[i] = shape;
+            Object output = Array.newInstance(float.class, shape);
+            FloatBuffer data = record.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            get_floats(data, output);
+            record.position(record.position() + elements(shape) * 4);
+            frame.outputs.put(i, output);
+        }
+        return frame;
+    }
+
+    /**
+     * Runs the post-processing on a recorded frame. Without labels, tags are "class" + index.
+     */
+    public static List<Map<String, Object>> run(Frame frame, Vector<String> labels) throws Exception {
+        if (frame.outputs.size() < 2) {
+            throw new Exception("replay needs the two outputs of a segmentation model");
+        }
+        float[][][] output0 = (float[][][]) frame.outputs.get(0);
+        if (labels == null) {
+            labels = new Vector<>();
+            for (int i = 0; i < output0[0].length - 4 - PostProcessing.MASK_WEIGHTS; i++) {
+                labels.add("class" + i);
+            }
+        }
+        return PostProcessing.segment(output0, (float[][][][]) frame.outputs.get(1), frame.input_shape,
+                frame.source_height, frame.source_width,
+                frame.iou_threshold, frame.conf_threshold, frame.class_threshold, frame.stretched, labels);
+    }
+
+    private static int[] read_shape(ByteBuffer record) {
+        int[] shape = new int[record.getInt()];
+        for (int i = 0; i < shape.length; i++) shape[i] = record.getInt();
+        return shape;
+    }
+
+    private static int elements(int[] shape) {
+        int elements = 1;
+        for (int dimension : shape) elements *= dimension;
+        return elements;
+    }
+
+    private static void get_floats(FloatBuffer data, Object array) {
+        if (array instanceof float[]) {
+            data.get((float[]) array);
+            return;
+        }
+        int length = Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            get_floats(data, Array.get(array, i));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        random_access_file.close();
+    }
+}
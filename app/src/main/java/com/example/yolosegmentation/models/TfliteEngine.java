@@ -0,0 +1,114 @@
+package com.example.yolosegmentation.models;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.gpu.CompatibilityList;
+import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.gpu.GpuDelegateFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+public class TfliteEngine implements InferenceEngine {
+    private final int num_threads;
+    private final boolean use_gpu;
+    private final boolean quantization;
+    private final boolean use_xnnpack;
+    private final boolean allow_fp16;
+    private final Object[] inputs = new Object[1];
+    private Interpreter interpreter;
+    private GpuDelegate gpu_delegate;
+
+    public TfliteEngine(int num_threads, boolean use_gpu, boolean quantization) {
+        this(num_threads, use_gpu, quantization, true, false);
+    }
+
+    /**
+     * @param use_xnnpack enables the XNNPACK delegate on the CPU path
+     * @param allow_fp16  lets the CPU kernels and the GPU delegate compute fp32 models in fp16
+     */
+    public TfliteEngine(int num_threads, boolean use_gpu, boolean quantization,
+                        boolean use_xnnpack, boolean allow_fp16) {
+        this.num_threads = num_threads;
+        this.use_gpu = use_gpu;
+        this.quantization = quantization;
+        this.use_xnnpack = use_xnnpack;
+        this.allow_fp16 = allow_fp16;
+    }
+
+    @Override
+    public void load(ByteBuffer model) throws Exception {
+        Interpreter.Options interpreterOptions = new Interpreter.Options();
+        try {
+            // Check if GPU support is available
+            CompatibilityList compatibilityList = new CompatibilityList();
+            if (use_gpu && compatibilityList.isDelegateSupportedOnThisDevice()) {
+                GpuDelegateFactory.Options delegateOptions = compatibilityList.getBestOptionsForThisDevice();
+                delegateOptions.setPrecisionLossAllowed(this.allow_fp16);
+                gpu_delegate = new GpuDelegate(delegateOptions.setQuantizedModelsAllowed(this.quantization));
+                interpreterOptions.addDelegate(gpu_delegate);
+            } else {
+                set_cpu_options(interpreterOptions);
+            }
+            // Create the interpreter
+            this.interpreter = new Interpreter(model, interpreterOptions);
+        } catch (Exception e) {
+            close_delegate();
+            interpreterOptions = new Interpreter.Options();
+            set_cpu_options(interpreterOptions);
+            // Create the interpreter
+            this.interpreter = new Interpreter(model, interpreterOptions);
+        }
+        this.interpreter.allocateTensors();
+    }
+
+    private void set_cpu_options(Interpreter.Options interpreterOptions) {
+        interpreterOptions.setNumThreads(num_threads);
+        interpreterOptions.setUseXNNPACK(use_xnnpack);
+        interpreterOptions.setAllowFp16PrecisionForFp32(allow_fp16);
+    }
+
+    /**
+     * True when the interpreter ended up on the GPU delegate.
+     */
+    public boolean isUsingGpu() {
+        return gpu_delegate != null;
+    }
+
+    @Override
+    public int[] getInputShape() {
+        return interpreter.getInputTensor(0).shape();
+    }
+
+    @Override
+    public int getOutputCount() {
+        return interpreter.getOutputTensorCount();
+    }
+
+    @Override
+    public int[] getOutputShape(int index) {
+        return interpreter.getOutputTensor(index).shape();
+    }
+
+    @Override
+    public void run(ByteBuffer input, Map<Integer, Object> outputs) {
+        inputs[0] = input;
+        interpreter.runForMultipleInputsOutputs(inputs, outputs);
+        inputs[0] = null;
+    }
+
+    private void close_delegate() {
+        if (gpu_delegate != null) {
+            gpu_delegate.close();
+            gpu_delegate = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (interpreter != null) {
+            interpreter.close();
+            interpreter = null;
+        }
+        close_delegate();
+    }
+}
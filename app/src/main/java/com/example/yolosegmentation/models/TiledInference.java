@@ -0,0 +1,312 @@
+package com.example.yolosegmentation.models;
+
+import android.graphics.Bitmap;
+
+import com.example.yolosegmentation.utils.StageTimer;
+import com.example.yolosegmentation.utils.TensorSampler;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sliced inference for images much larger than the model input. The source is cut into
+ * overlapping tiles that run in parallel on a pool of interpreters, detections are shifted back
+ * to source coordinates and duplicates across tiles are merged: boxes of the same class that
+ * overlap are fused and their polygons stitched together into a single mask.
+ *
+ * Tiles are sampled straight from the source Bitmap into each worker's input buffer, so no
+ * full-resolution copy of the image is made.
+ */
+public class TiledInference {
+    //longest side of the raster used to stitch polygons of merged detections
+    private static final int STITCH_RESOLUTION = 256;
+
+    private static class Worker {
+        final Yolo model;
+        final ByteBuffer input;
+        final TensorSampler sampler = new TensorSampler();
+
+        Worker(Yolo model, int input_width, int input_height) {
+            this.model = model;
+            this.input = TensorSampler.allocateInput(input_width, input_height);
+        }
+    }
+
+    private final BlockingQueue<Worker> workers;
+    private final ExecutorService executor;
+    private final int input_width;
+    private final int input_height;
+    private int tile_size;
+    private float overlap = 0.2f;
+    private float merge_threshold = 0.5f;
+    private boolean include_full_frame = true;
+
+    /**
+     * @param pool initialized models, one interpreter per worker thread
+     */
+    public TiledInference(List<Yolo> pool) {
+        int[] shape = pool.get(0).getInputShape();
+        this.input_height = shape[1];
+        this.input_width = shape[2];
+        this.tile_size = 2 * Math.max(input_width, input_height);
+        this.workers = new ArrayBlockingQueue<>(pool.size());
+        for (Yolo model : pool) {
+            workers.add(new Worker(model, input_width, input_height));
+        }
+        this.executor = Executors.newFixedThreadPool(pool.size());
+    }
+
+    public TiledInference setTileSize(int tile_size) {
+        this.tile_size = Math.max(tile_size, Math.max(input_width, input_height));
+        return this;
+    }
+
+    /**
+     * @param overlap fraction of the tile shared with its neighbour
+     */
+    public TiledInference setOverlap(float overlap) {
+        this.overlap = overlap;
+        return this;
+    }
+
+    /**
+     * @param merge_threshold intersection over the smaller box above which detections of the
+     *                        same class from different tiles are merged
+     */
+    public TiledInference setMergeThreshold(float merge_threshold) {
+        this.merge_threshold = merge_threshold;
+        return this;
+    }
+
+    /**
+     * Also run one downscaled full-frame pass, which catches objects larger than a tile.
+     */
+    public TiledInference setIncludeFullFrame(boolean include_full_frame) {
+        this.include_full_frame = include_full_frame;
+        return this;
+    }
+
+    public boolean should_tile(int source_width, int source_height) {
+        return source_width > input_width && source_height > input_height
+                && (source_width > tile_size || source_height > tile_size);
+    }
+
+    public List<Map<String, Object>> detect(Bitmap source,
+                                            final float iou_threshold,
+                                            final float conf_threshold,
+                                            final float class_threshold) throws Exception {
+        final Bitmap image = source;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        List<int[]> regions = tile_regions(width, height);
+        if (include_full_frame && regions.size() > 1) {
+            regions.add(new int[]{0, 0, width, height});
+        }
+
+        List<Future<List<Map<String, Object>>>> futures = new ArrayList<>();
+        for (final int[] region : regions) {
+            futures.add(executor.submit(() -> run_tile(image, region,
+                    iou_threshold, conf_threshold, class_threshold)));
+        }
+        List<Map<String, Object>> detections = new ArrayList<>();
+        for (Future<List<Map<String, Object>>> future : futures) {
+            detections.addAll(future.get());
+        }
+        return merge(detections, iou_threshold);
+    }
+
+    private List<Map<String, Object>> run_tile(Bitmap source, int[] region,
+                                               float iou_threshold,
+                                               float conf_threshold,
+                                               float class_threshold) throws Exception {
+        Worker worker = workers.take();
+        try {
+            //every tile is a model run of its own, it is timed like a frame
+            long start = StageTimer.getInstance().start(StageTimer.Stage.PREPROCESS);
+            worker.sampler.sample(source, region[0], region[1], region[2], region[3],
+                    worker.input, input_width, input_height, 0, 255);
+            StageTimer.getInstance().stop(StageTimer.Stage.PREPROCESS, start);
+            List<Map<String, Object>> detections = worker.model.detect_task(worker.input,
+                    region[3], region[2], iou_threshold, conf_threshold, class_threshold, true);
+            //polygons are relative to their box, only the box has to be moved
+            for (Map<String, Object> detection : detections) {
+                float[] box = (float[]) detection.get("box");
+                box[0] += region[0];
+                box[1] += region[1];
+                box[2] += region[0];
+                box[3] += region[1];
+            }
+            return detections;
+        } finally {
+            workers.put(worker);
+        }
+    }
+
+    private List<int[]> tile_regions(int width, int height) {
+        int tile_width = Math.min(tile_size, width);
+        int tile_height = Math.min(tile_size, height);
+        List<int[]> regions = new ArrayList<>();
+        for (int y : tile_positions(height, tile_height)) {
+            for (int x : tile_positions(width, tile_width)) {
+                regions.add(new int[]{x, y, tile_width, tile_height});
+            }
+        }
+        return regions;
+    }
+
+    private List<Integer> tile_positions(int length, int tile) {
+        List<Integer> positions = new ArrayList<>();
+        int step = Math.max(1, (int) (tile * (1f - overlap)));
+        for (int p = 0; ; p += step) {
+            if (p + tile >= length) {
+                //last tile is aligned to the border instead of running past it
+                positions.add(length - tile);
+                break;
+            }
+            positions.add(p);
+        }
+        return positions;
+    }
+
+    /**
+     * Greedy cross-tile merge: detections are visited by confidence and every lower scored
+     * detection of the same class that overlaps enough is folded into it.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> merge(List<Map<String, Object>> detections, float iou_threshold) {
+        Collections.sort(detections, new Comparator<Map<String, Object>>() {
+            @Override
+            public int compare(Map<String, Object> d1, Map<String, Object> d2) {
+                return Float.compare(((float[]) d2.get("box"))[4], ((float[]) d1.get("box"))[4]);
+            }
+        });
+        List<Map<String, Object>> merged = new ArrayList<>();
+        boolean[] removed = new boolean[detections.size()];
+        for (int i = 0; i < detections.size(); i++) {
+            if (removed[i]) continue;
+            Map<String, Object> detection = detections.get(i);
+            float[] box = (float[]) detection.get("box");
+            List<Map<String, Double>> polygon = (List<Map<String, Double>>) detection.get("polygons");
+            for (int j = i + 1; j < detections.size(); j++) {
+                if (removed[j]) continue;
+                Map<String, Object> other = detections.get(j);
+                if (!detection.get("tag").equals(other.get("tag"))) continue;
+                float[] other_box = (float[]) other.get("box");
+                float intersection = intersection(box, other_box);
+                float iou = intersection / (area(box) + area(other_box) - intersection);
+                float ios = intersection / Math.min(area(box), area(other_box));
+                if (iou <= iou_threshold && ios <= merge_threshold) continue;
+                removed[j] = true;
+                if (contains(box, other_box)) continue;
+                float[] union = new float[]{
+                        Math.min(box[0], other_box[0]), Math.min(box[1], other_box[1]),
+                        Math.max(box[2], other_box[2]), Math.max(box[3], other_box[3]), box[4]};
+                polygon = stitch(box, polygon,
+                        other_box, (List<Map<String, Double>>) other.get("polygons"), union);
+                box = union;
+            }
+            Map<String, Object> output = new HashMap<>();
+            output.put("box", box);
+            output.put("polygons", polygon);
+            output.put("tag", detection.get("tag"));
+            merged.add(output);
+        }
+        return merged;
+    }
+
+    /**
+     * Rasterizes both polygons in the frame of the merged box and returns the outline of the
+     * largest resulting region, relative to the merged box like any other polygon.
+     */
+    private static List<Map<String, Double>> stitch(float[] box, List<Map<String, Double>> polygon,
+                                                    float[] other_box, List<Map<String, Double>> other_polygon,
+                                                    float[] union) {
+        float union_width = union[2] - union[0];
+        float union_height = union[3] - union[1];
+        double scale = Math.min(1.0, STITCH_RESOLUTION / (double) Math.max(union_width, union_height));
+        Mat mask = Mat.zeros(Math.max(1, (int) Math.ceil(union_height * scale)),
+                Math.max(1, (int) Math.ceil(union_width * scale)), CvType.CV_8UC1);
+        List<MatOfPoint> fill = new ArrayList<>();
+        add_polygon(fill, polygon, box[0] - union[0], box[1] - union[1], scale);
+        add_polygon(fill, other_polygon, other_box[0] - union[0], other_box[1] - union[1], scale);
+        Mat hierarchy = new Mat();
+        List<MatOfPoint> contours = new ArrayList<>();
+        try {
+            if (fill.isEmpty()) return polygon;
+            Imgproc.fillPoly(mask, fill, new Scalar(255));
+            Imgproc.findContours(mask, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+            MatOfPoint largest = null;
+            double largest_area = 0;
+            for (MatOfPoint contour : contours) {
+                double area = Imgproc.contourArea(contour);
+                if (largest == null || area > largest_area) {
+                    largest_area = area;
+                    largest = contour;
+                }
+            }
+            if (largest == null) return polygon;
+            List<Map<String, Double>> stitched = new ArrayList<>();
+            for (Point point : largest.toArray()) {
+                Map<String, Double> point_map = new HashMap<>();
+                point_map.put("x", point.x / scale);
+                point_map.put("y", point.y / scale);
+                stitched.add(point_map);
+            }
+            return stitched;
+        } finally {
+            mask.release();
+            hierarchy.release();
+            for (MatOfPoint mat : fill) mat.release();
+            for (MatOfPoint mat : contours) mat.release();
+        }
+    }
+
+    private static void add_polygon(List<MatOfPoint> fill, List<Map<String, Double>> polygon,
+                                    float offset_x, float offset_y, double scale) {
+        if (polygon == null || polygon.isEmpty()) return;
+        Point[] points = new Point[polygon.size()];
+        for (int i = 0; i < points.length; i++) {
+            Map<String, Double> point = polygon.get(i);
+            points[i] = new Point((point.get("x") + offset_x) * scale, (point.get("y") + offset_y) * scale);
+        }
+        fill.add(new MatOfPoint(points));
+    }
+
+    private static float area(float[] box) {
+        return Math.max(0, box[2] - box[0]) * Math.max(0, box[3] - box[1]);
+    }
+
+    private static float intersection(float[] a, float[] b) {
+        float width = Math.max(0, Math.min(a[2], b[2]) - Math.max(a[0], b[0]));
+        float height = Math.max(0, Math.min(a[3], b[3]) - Math.max(a[1], b[1]));
+        return width * height;
+    }
+
+    private static boolean contains(float[] outer, float[] inner) {
+        return inner[0] >= outer[0] && inner[1] >= outer[1] && inner[2] <= outer[2] && inner[3] <= outer[3];
+    }
+
+    public void close() {
+        executor.shutdown();
+        for (Worker worker : workers) {
+            worker.model.close();
+        }
+    }
+}
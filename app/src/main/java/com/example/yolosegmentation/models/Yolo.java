@@ -1,18 +1,19 @@
 package com.example.yolosegmentation.models;
 
 
-import static java.lang.Math.min;
-
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
+import android.graphics.Bitmap;
 import android.util.Log;
-import org.tensorflow.lite.Interpreter;
-import org.tensorflow.lite.Tensor;
-import org.tensorflow.lite.gpu.CompatibilityList;
-import org.tensorflow.lite.gpu.GpuDelegate;
-import org.tensorflow.lite.gpu.GpuDelegateFactory;
+
+import com.example.yolosegmentation.utils.MatTensorSampler;
+import com.example.yolosegmentation.utils.StageTimer;
+import com.example.yolosegmentation.utils.TensorSampler;
+import com.example.yolosegmentation.utils.utils;
+
+import org.opencv.core.Mat;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -20,6 +21,7 @@ import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -27,13 +29,29 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 
 
 public class Yolo {
     protected float[][][] output;
-    protected Interpreter interpreter;
+    //preallocated arrays for every engine output, indexed like the model outputs
+    protected Map<Integer, Object> outputs;
+    protected InferenceEngine engine;
+    //size of the model file the engine was loaded from
+    protected long model_bytes;
+    //captures the tensors of selected frames, may be null
+    protected volatile TensorRecorder recorder;
+    //input tensor and sampler of detect(Mat), created on first use
+    private ByteBuffer mat_input;
+    private MatTensorSampler mat_sampler;
+    //scheduler of the *_async calls, created on first use
+    private AsyncDetector async_detector;
+    //imgsz of an ONNX export, OpenCV DNN can't read it from the model
+    private int onnx_input_width;
+    private int onnx_input_height;
     protected Vector<String> labels;
     protected final Context context;
     protected final String model_path;
@@ -63,21 +81,145 @@ public class Yolo {
     }
 
     //    public Vector<String> getLabels(){return this.labels;}
-    public Tensor getInputTensor() {
-        return this.interpreter.getInputTensor(0);
+
+    /**
+     * [1, height, width, channels] of the model input.
+     */
+    public int[] getInputShape() {
+        return this.engine.getInputShape();
+    }
+
+    /**
+     * Replaces the default backend, must be called before {@link #initialize_model()}.
+     */
+    public void setEngine(InferenceEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Input size the ONNX model was exported with (its imgsz), required for ONNX models and
+     * before {@link #initialize_model()}. TFLite models carry their own.
+     */
+    public void setInputSize(int input_width, int input_height) {
+        this.onnx_input_width = input_width;
+        this.onnx_input_height = input_height;
+    }
+
+    public InferenceEngine getEngine() {
+        return this.engine;
+    }
+
+    /**
+     * Captures input and raw outputs of the frames the recorder selects, null turns it off.
+     */
+    public void setRecorder(TensorRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Hands the tensors of the frame that just ran to the recorder, if it wants them.
+     */
+    protected void record_frame(ByteBuffer input, int source_height, int source_width,
+                                float iou_threshold, float conf_threshold, float class_threshold,
+                                boolean stretched) {
+        TensorRecorder recorder = this.recorder;
+        if (recorder == null || !recorder.should_record()) return;
+        int[][] output_shapes = new int[engine.getOutputCount()][];
+        for (int i = 0; i < output_shapes.length; i++) output_shapes[i] = engine.getOutputShape(i);
+        try {
+            recorder.record(input, engine.getInputShape(), outputs, output_shapes,
+                    source_height, source_width, iou_threshold, conf_threshold, class_threshold, stretched,
+                    "model=" + model_path + ";engine=" + engine.getClass().getSimpleName());
+        } catch (Exception e) {
+            Log.w("Yolo", "unable to record frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Backend picked from the model file: ONNX exports run on OpenCV DNN, everything else on
+     * TFLite.
+     */
+    protected InferenceEngine create_engine() throws Exception {
+        if (model_path.toLowerCase(Locale.ROOT).endsWith(".onnx")) {
+            if (onnx_input_width <= 0 || onnx_input_height <= 0) {
+                throw new Exception("input size of " + model_path + " not set, see setInputSize");
+            }
+            return new OpenCvDnnEngine(onnx_input_width, onnx_input_height);
+        }
+        return new TfliteEngine(num_threads, use_gpu, quantization);
     }
 
     @SuppressLint("SuspiciousIndentation")
     public void initialize_model() throws Exception {
-        AssetManager asset_manager = null;
+        AssetManager asset_manager = is_assets ? context.getAssets() : null;
         MappedByteBuffer buffer = null;
+
+        try {
+            buffer = map_model(context, model_path, is_assets);
+            if (this.engine == null) {
+                this.engine = create_engine();
+            }
+            this.engine.load(buffer);
+            this.model_bytes = buffer.capacity();
+            this.labels = load_labels(asset_manager, label_path);
+            this.outputs = new HashMap<>();
+            for (int i = 0; i < engine.getOutputCount(); i++) {
+                outputs.put(i, Array.newInstance(float.class, engine.getOutputShape(i)));
+            }
+            this.output = (float [][][]) outputs.get(0);//3dimension
+        } catch (Exception e) {
+            throw e;
+        } finally {
+            if (buffer != null)
+                buffer.clear();
+        }
+    }
+
+    public boolean is_initialized() {
+        return this.outputs != null;
+    }
+
+    /**
+     * Rough footprint of the model: the model buffer plus one input and all output tensors.
+     */
+    public long estimate_memory_bytes() {
+        if (!is_initialized()) return 0;
+        long bytes = model_bytes;
+        long input = 4;
+        for (int dimension : engine.getInputShape()) input *= dimension;
+        bytes += input;
+        for (int i = 0; i < engine.getOutputCount(); i++) {
+            long output = 4;
+            for (int dimension : engine.getOutputShape(i)) output *= dimension;
+            bytes += output;
+        }
+        return bytes;
+    }
+
+    /**
+     * Runs the engine on a blank input, which triggers delegate compilation and lazy allocations
+     * before the first real frame.
+     */
+    public void warm_up(int runs) {
+        int[] shape = engine.getInputShape();
+        ByteBuffer input = ByteBuffer.allocateDirect(shape[1] * shape[2] * shape[3] * 4)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < runs; i++) {
+            input.rewind();
+            engine.run(input, outputs);
+        }
+    }
+
+    /**
+     * Maps the model file read only, the mapping stays valid after the file is closed.
+     */
+    public static MappedByteBuffer map_model(Context context, String model_path, boolean is_assets) throws Exception {
+        MappedByteBuffer buffer;
         FileChannel file_channel = null;
         FileInputStream input_stream = null;
-
         try {
             if (is_assets) {
-                asset_manager = context.getAssets();
-                AssetFileDescriptor file_descriptor = asset_manager.openFd(this.model_path);
+                AssetFileDescriptor file_descriptor = context.getAssets().openFd(model_path);
                 input_stream = new FileInputStream(file_descriptor.getFileDescriptor());
 
                 file_channel = input_stream.getChannel();
@@ -87,46 +229,41 @@ public class Yolo {
                 );
                 file_descriptor.close();
             } else {
-                input_stream = new FileInputStream(new File(this.model_path));
+                input_stream = new FileInputStream(new File(model_path));
                 file_channel = input_stream.getChannel();
                 buffer = file_channel.map(FileChannel.MapMode.READ_ONLY, 0, file_channel.size());
             }
-
-            Interpreter.Options interpreterOptions = new Interpreter.Options();
-            try {
-                // Check if GPU support is available
-                CompatibilityList compatibilityList = new CompatibilityList();
-                if (use_gpu && compatibilityList.isDelegateSupportedOnThisDevice()) {
-                    GpuDelegateFactory.Options delegateOptions = compatibilityList.getBestOptionsForThisDevice();
-                    GpuDelegate gpuDelegate = new GpuDelegate(delegateOptions.setQuantizedModelsAllowed(this.quantization));
-                    interpreterOptions.addDelegate(gpuDelegate);
-                } else {
-                    interpreterOptions.setNumThreads(num_threads);
-                }
-                // Create the interpreter
-                this.interpreter = new Interpreter(buffer, interpreterOptions);
-            } catch (Exception e) {
-                interpreterOptions = new Interpreter.Options();
-                interpreterOptions.setNumThreads(num_threads);
-                // Create the interpreter
-                this.interpreter = new Interpreter(buffer, interpreterOptions);
-            }
-            this.interpreter.allocateTensors();
-            this.labels = load_labels(asset_manager, label_path);
-            int[] shape = interpreter.getOutputTensor(0).shape();//3dimension
-            this.output = (float [][][]) Array.newInstance(float.class, shape);
-        } catch (Exception e) {
-            throw e;
+            return buffer;
         } finally {
-            if (buffer != null)
-                buffer.clear();
             if (file_channel != null && file_channel.isOpen()) {
                 file_channel.close();
+            }
+            if (input_stream != null) {
                 input_stream.close();
             }
         }
     }
 
+    /**
+     * Identifies the model file without reading it: its size, plus the install time of the app
+     * for bundled assets (they only change with an update) or the modification time of a file.
+     */
+    public static String model_version(Context context, String model_path, boolean is_assets) throws Exception {
+        long length;
+        long version;
+        if (is_assets) {
+            try (AssetFileDescriptor descriptor = context.getAssets().openFd(model_path)) {
+                length = descriptor.getLength();
+            }
+            version = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } else {
+            File file = new File(model_path);
+            length = file.length();
+            version = file.lastModified();
+        }
+        return length + "_" + version;
+    }
+
     protected Vector<String> load_labels(AssetManager asset_manager, String label_path) throws Exception {
         BufferedReader br = null;
         try {
@@ -155,12 +292,33 @@ public class Yolo {
                                                  int source_width,
                                                  float iou_threshold,
                                                  float conf_threshold, float class_threshold) throws Exception {
+        return detect_task(byteBuffer, source_height, source_width,
+                iou_threshold, conf_threshold, class_threshold, false);
+    }
+
+    /**
+     * Synchronized on the model, holders of a model shared through {@link ModelCache} run one
+     * inference at a time on its engine and output arrays.
+     *
+     * @param stretched true when the input was filled by resampling the whole source to the
+     *                  input size (e.g. {@link com.example.yolosegmentation.utils.TensorSampler}),
+     *                  false when it was built by {@code utils.feedInputTensor}, which pads
+     *                  sources smaller than the input instead of scaling them up
+     */
+    public synchronized List<Map<String, Object>> detect_task(ByteBuffer byteBuffer,
+                                                              int source_height,
+                                                              int source_width,
+                                                              float iou_threshold,
+                                                              float conf_threshold, float class_threshold,
+                                                              boolean stretched) throws Exception {
         try {
-            int[] input_shape = this.interpreter.getInputTensor(0).shape();
-            this.interpreter.run(byteBuffer, this.output);
+            int[] input_shape = this.engine.getInputShape();
+            long start = StageTimer.getInstance().start(StageTimer.Stage.INFERENCE);
+            this.engine.run(byteBuffer, this.outputs);
+            StageTimer.getInstance().stop(StageTimer.Stage.INFERENCE, start);
             List<float[]> boxes = filter_box(this.output, iou_threshold, conf_threshold,
                     class_threshold, input_shape[1], input_shape[2]);
-            boxes = restore_size(boxes, input_shape[1], input_shape[2], source_width, source_height);
+            boxes = restore_size(boxes, input_shape[1], input_shape[2], source_width, source_height, stretched);
             return out(boxes, this.labels);
         } catch (Exception e) {
             throw e;
@@ -169,6 +327,87 @@ public class Yolo {
         }
     }
 
+    /**
+     * Runs the model on an OpenCV frame, e.g. {@code CvCameraViewFrame.rgba()} or a YUV Mat from
+     * JavaCamera2View, without going through a Bitmap. The whole frame is resampled to the input
+     * size and detections come back in frame pixel coordinates.
+     */
+    public List<Map<String, Object>> detect(Mat frame, MatTensorSampler.Format format,
+                                            float iou_threshold,
+                                            float conf_threshold,
+                                            float class_threshold) throws Exception {
+        int[] shape = getInputShape();
+        int input_height = shape[1];
+        int input_width = shape[2];
+        if (mat_sampler == null) mat_sampler = new MatTensorSampler();
+        if (mat_input == null || mat_input.capacity() != input_width * input_height * 3 * 4) {
+            mat_input = TensorSampler.allocateInput(input_width, input_height);
+        }
+        long start = StageTimer.getInstance().start(StageTimer.Stage.PREPROCESS);
+        mat_sampler.sample(frame, format, mat_input, input_width, input_height, 0, 255);
+        StageTimer.getInstance().stop(StageTimer.Stage.PREPROCESS, start);
+        return detect_task(mat_input, format.height(frame), frame.cols(),
+                iou_threshold, conf_threshold, class_threshold, true);
+    }
+
+    private synchronized AsyncDetector async_detector() {
+        if (async_detector == null) async_detector = new AsyncDetector(this);
+        return async_detector;
+    }
+
+    /**
+     * Jobs of the *_async calls running or queued at most, older queued frames are cancelled to
+     * make room for newer ones, see {@link AsyncDetector}.
+     */
+    public void setMaxInFlight(int max_in_flight) {
+        async_detector().setMaxInFlight(max_in_flight);
+    }
+
+    /**
+     * Runs {@code job} on this model's detection thread. Async jobs never overlap each other, but
+     * nothing keeps them apart from synchronous calls made on other threads.
+     */
+    public <T> CompletableFuture<T> run_async(AsyncDetector.Job<T> job) {
+        return async_detector().submit(job);
+    }
+
+    /**
+     * @param supersedable false for jobs that must run even when newer frames arrive (e.g.
+     *                     releasing resources), see {@link AsyncDetector}
+     */
+    public <T> CompletableFuture<T> run_async(AsyncDetector.Job<T> job, boolean supersedable) {
+        return async_detector().submit(job, supersedable);
+    }
+
+    /**
+     * {@link #detect_task} of a bitmap prepared like {@code utils.feedInputTensor} does. The future
+     * is cancelled when a newer frame supersedes this one before it started.
+     */
+    public CompletableFuture<List<Map<String, Object>>> detect_async(final Bitmap frame,
+                                                                     final float iou_threshold,
+                                                                     final float conf_threshold,
+                                                                     final float class_threshold) {
+        return run_async(model -> {
+            int[] shape = model.getInputShape();
+            int source_width = frame.getWidth();
+            int source_height = frame.getHeight();
+            ByteBuffer input = utils.feedInputTensor(frame, shape[1], shape[2], source_width, source_height, 0, 255);
+            return model.detect_task(input, source_height, source_width, iou_threshold, conf_threshold, class_threshold);
+        });
+    }
+
+    /**
+     * {@link #detect(Mat, MatTensorSampler.Format, float, float, float)} on the detection thread,
+     * the frame must stay valid until the future completes.
+     */
+    public CompletableFuture<List<Map<String, Object>>> detect_async(final Mat frame,
+                                                                     final MatTensorSampler.Format format,
+                                                                     final float iou_threshold,
+                                                                     final float conf_threshold,
+                                                                     final float class_threshold) {
+        return run_async(model -> model.detect(frame, format, iou_threshold, conf_threshold, class_threshold));
+    }
+
     protected List<float[]> filter_box(float[][][] model_outputs, float iou_threshold,
                                        float conf_threshold, float class_threshold, float input_width, float input_height) {
         try {
@@ -224,70 +463,18 @@ public class Yolo {
     }
 
     protected static List<float[]> nms(List<float[]> boxes, float iou_threshold) {
-        try {
-            List<float[]> filteredBoxes = new ArrayList<>(boxes); // Create a copy of the input list
-
-            for (int i = 0; i < filteredBoxes.size(); i++) {
-                float[] box = filteredBoxes.get(i);
-                for (int j = i + 1; j < filteredBoxes.size(); j++) {
-                    float[] next_box = filteredBoxes.get(j);
-                    float x1 = Math.max(next_box[0], box[0]);
-                    float y1 = Math.max(next_box[1], box[1]);
-                    float x2 = Math.min(next_box[2], box[2]);
-                    float y2 = Math.min(next_box[3], box[3]);
-
-                    float width = Math.max(0, x2 - x1);
-                    float height = Math.max(0, y2 - y1);
-
-                    float intersection = width * height;
-                    float union = (next_box[2] - next_box[0]) * (next_box[3] - next_box[1])
-                            + (box[2] - box[0]) * (box[3] - box[1]) - intersection;
-                    float iou = intersection / union;
-                    if (iou > iou_threshold) {
-                        filteredBoxes.remove(j);
-                        j--;
-                    }
-                }
-            }
-            return filteredBoxes;
-        } catch (Exception e) {
-            Log.e("nms", e.getMessage());
-            throw e;
-        }
+        return PostProcessing.nms(boxes, iou_threshold);
     }
 
     protected List<float[]> restore_size(List<float[]> nms,
                                          int input_width,
                                          int input_height,
                                          int src_width,
-                                         int src_height) {
-        try {
-            //restore size after scaling, larger images
-            if (src_width > input_width || src_height > input_height) {
-                float gainx = src_width / (float) input_width;
-                float gainy = src_height / (float) input_height;
-                for (int i = 0; i < nms.size(); i++) {
-                    nms.get(i)[0] = min(src_width, Math.max(nms.get(i)[0] * gainx, 0));
-                    nms.get(i)[1] = min(src_height, Math.max(nms.get(i)[1] * gainy, 0));
-                    nms.get(i)[2] = min(src_width, Math.max(nms.get(i)[2] * gainx, 0));
-                    nms.get(i)[3] = min(src_height, Math.max(nms.get(i)[3] * gainy, 0));
-                }
-                //restore size after padding, smaller images
-            } else {
-                float padx = (src_width - input_width) / 2f;
-                float pady = (src_height - input_height) / 2f;
-                for (int i = 0; i < nms.size(); i++) {
-                    nms.get(i)[0] = min(src_width, Math.max(nms.get(i)[0] + padx, 0));
-                    nms.get(i)[1] = min(src_height, Math.max(nms.get(i)[1] + pady, 0));
-                    nms.get(i)[2] = min(src_width, Math.max(nms.get(i)[2] + padx, 0));
-                    nms.get(i)[3] = min(src_height, Math.max(nms.get(i)[3] + pady, 0));
-                }
-            }
-            return nms;
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage());
-        }
+                                         int src_height,
+                                         boolean stretched) {
+        return PostProcessing.restore_size(nms, input_width, input_height, src_width, src_height, stretched);
     }
+
     protected List<Map<String, Object>> out(List<float[]> yolo_result, Vector<String> labels) {
         try {
             List<Map<String, Object>> result = new ArrayList<>();
@@ -314,8 +501,17 @@ public class Yolo {
 
     public void close() {
         try {
-            if (interpreter != null)
-                interpreter.close();
+            AsyncDetector async_detector;
+            synchronized (this) {
+                async_detector = this.async_detector;
+            }
+            //queued frames are cancelled, the running one finishes before the engine goes away
+            if (async_detector != null)
+                async_detector.close();
+            if (mat_sampler != null)
+                mat_sampler.release();
+            if (engine != null)
+                engine.close();
         } catch (Exception e) {
             throw e;
         }
@@ -0,0 +1,13 @@
+package com.example.yolosegmentation.utils;
+
+/**
+ * Source of the bytes allocated so far by the calling thread, used by {@link StageTimer} to
+ * account allocations per stage. Implementations must not allocate on the Java heap themselves,
+ * or subtract what they do allocate, since that would be counted as the stage's.
+ */
+public interface AllocationCounter {
+    /**
+     * Monotonic count of bytes allocated by the current thread, only differences are meaningful.
+     */
+    long thread_allocated_bytes();
+}
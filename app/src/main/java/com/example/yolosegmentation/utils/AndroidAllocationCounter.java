@@ -0,0 +1,28 @@
+package com.example.yolosegmentation.utils;
+
+import android.os.Debug;
+
+/**
+ * Per-thread allocated bytes from the runtime's allocation counters. Counting is process wide
+ * and has a cost of its own, it is started by {@link #start()} and should only be on while
+ * someone looks at the numbers.
+ */
+@SuppressWarnings("deprecation")
+public class AndroidAllocationCounter implements AllocationCounter {
+
+    public static AndroidAllocationCounter start() {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        return new AndroidAllocationCounter();
+    }
+
+    public void stop() {
+        Debug.stopAllocCounting();
+    }
+
+    @Override
+    public long thread_allocated_bytes() {
+        //an int that wraps around, a wrapped difference comes out negative and is skipped
+        return Debug.getThreadAllocSize() & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.yolosegmentation.utils;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide pool of Bitmaps keyed by width, height and config, so the live pipeline reuses the
+ * same few frame-sized bitmaps instead of creating and finalizing one or two per frame.
+ *
+ * Ownership is strict: every {@link #acquire} (or {@link #track} of a bitmap created elsewhere)
+ * is matched by exactly one {@link #release}, releasing a bitmap the pool didn't hand out, or
+ * releasing it twice, throws. Bitmaps still out are counted, together with how long they have
+ * been out, so leaks show up in {@link #appendStats}; bitmaps held on purpose are marked with
+ * {@link #keep}. Idle bitmaps above {@link #setMaxBytes} are recycled.
+ */
+public class BitmapPool {
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    //a bitmap out for longer than this is reported as a probable leak
+    private static final long LEAK_AGE_MS = 5000;
+    private static BitmapPool instance;
+
+    //in access order, trimming starts with the sizes nobody acquired or released for longest
+    private final LinkedHashMap<Long, ArrayDeque<Bitmap>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    //bitmaps handed out, with the uptime they were acquired at
+    private final IdentityHashMap<Bitmap, Long> outstanding = new IdentityHashMap<>();
+    //outstanding bitmaps held on purpose, not counted as leaks
+    private final Set<Bitmap> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long idle_bytes = 0;
+    private long max_bytes = DEFAULT_MAX_BYTES;
+    private long created = 0;
+    private long reused = 0;
+    private long recycled = 0;
+    private int max_outstanding = 0;
+
+    //tests create their own, the app shares one through getInstance
+    BitmapPool() {
+    }
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool();
+        }
+        return instance;
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    /**
+     * Bytes of idle bitmaps kept for reuse, the least recently used sizes go first.
+     */
+    public synchronized void setMaxBytes(long max_bytes) {
+        this.max_bytes = max_bytes;
+        trim(max_bytes);
+    }
+
+    /**
+     * A mutable bitmap of that size and config. Contents are left from its previous use, callers
+     * overwrite every pixel or erase it.
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (this) {
+            ArrayDeque<Bitmap> bitmaps = idle.get(key(width, height, config));
+            if (bitmaps != null && !bitmaps.isEmpty()) {
+                bitmap = bitmaps.pollLast();
+                idle_bytes -= bitmap.getAllocationByteCount();
+                reused++;
+            } else {
+                created++;
+            }
+        }
+        //created outside the lock, it can take a while for large bitmaps
+        if (bitmap == null) bitmap = Bitmap.createBitmap(width, height, config);
+        return track(bitmap);
+    }
+
+    /**
+     * Takes a bitmap created elsewhere (e.g. by a decoder) under the pool's ownership rules, it is
+     * released like an acquired one.
+     */
+    public synchronized Bitmap track(Bitmap bitmap) {
+        outstanding.put(bitmap, SystemClock.uptimeMillis());
+        max_outstanding = Math.max(max_outstanding, outstanding.size());
+        return bitmap;
+    }
+
+    /**
+     * Marks an outstanding bitmap as held for as long as it takes (e.g. the image on screen), so
+     * {@link #getProbableLeaks} doesn't report it. It is still released as usual.
+     */
+    public synchronized void keep(Bitmap bitmap) {
+        if (!outstanding.containsKey(bitmap)) {
+            throw new IllegalStateException("bitmap " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + " kept but not acquired from the pool");
+        }
+        kept.add(bitmap);
+    }
+
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) return;
+        synchronized (this) {
+            if (outstanding.remove(bitmap) == null) {
+                throw new IllegalStateException("bitmap " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                        + " released twice or not acquired from the pool");
+            }
+            kept.remove(bitmap);
+            if (!bitmap.isRecycled() && bitmap.isMutable()
+                    && idle_bytes + bitmap.getAllocationByteCount() <= max_bytes) {
+                long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+                ArrayDeque<Bitmap> bitmaps = idle.get(key);
+                if (bitmaps == null) {
+                    bitmaps = new ArrayDeque<>();
+                    idle.put(key, bitmaps);
+                }
+                bitmaps.addLast(bitmap);
+                idle_bytes += bitmap.getAllocationByteCount();
+                return;
+            }
+            recycled++;
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Decodes an image into a pooled bitmap through {@link BitmapFactory.Options#inBitmap}. The
+     * result is owned by the caller and goes back with {@link #release}.
+     */
+    public Bitmap decode(ContentResolver resolver, Uri uri) throws Exception {
+        return decode(resolver, uri, read_bounds(resolver, uri), 0);
+    }
+
+    /**
+     * Reads only the image header: outWidth and outHeight are the full image size.
+     */
+    public static BitmapFactory.Options read_bounds(ContentResolver resolver, Uri uri) throws Exception {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream stream = resolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(stream, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new Exception("unable to decode " + uri);
+        }
+        return options;
+    }
+
+    /**
+     * Decodes an image subsampled by the largest power of two that keeps its longest side at
+     * least {@code target_size} (0 for the full size), so a large photo is never decoded in full
+     * only to be scaled down. The bitmap is smaller than {@code bounds} by up to the sample size,
+     * callers map coordinates with the sizes of both.
+     *
+     * @param bounds from {@link #read_bounds}
+     */
+    public Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options bounds,
+                         int target_size) throws Exception {
+        int longest = Math.max(bounds.outWidth, bounds.outHeight);
+        int sample_size = 1;
+        while (target_size > 0 && longest / (sample_size * 2) >= target_size) sample_size *= 2;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample_size;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        //decoders round the subsampled size differently, a bitmap that is too large is reconfigured
+        options.inBitmap = acquire((bounds.outWidth + sample_size - 1) / sample_size,
+                (bounds.outHeight + sample_size - 1) / sample_size, Bitmap.Config.ARGB_8888);
+        Bitmap bitmap;
+        try (InputStream stream = resolver.openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        } catch (IllegalArgumentException e) {
+            //the decoder refused the bitmap (e.g. a format it can't decode into it), decode fresh
+            release(options.inBitmap);
+            options.inBitmap = null;
+            try (InputStream stream = resolver.openInputStream(uri)) {
+                bitmap = BitmapFactory.decodeStream(stream, null, options);
+            }
+            if (bitmap == null) throw new Exception("unable to decode " + uri);
+            return track(bitmap);
+        }
+        if (bitmap == null) {
+            release(options.inBitmap);
+            throw new Exception("unable to decode " + uri);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Recycles idle bitmaps until at most {@code bytes} are kept.
+     */
+    public synchronized void trim(long bytes) {
+        for (ArrayDeque<Bitmap> bitmaps : idle.values()) {
+            while (idle_bytes > bytes && !bitmaps.isEmpty()) {
+                Bitmap bitmap = bitmaps.pollFirst();
+                idle_bytes -= bitmap.getAllocationByteCount();
+                bitmap.recycle();
+                recycled++;
+            }
+        }
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * Bitmaps out for longer than a few seconds and not marked with {@link #keep}, nothing in the
+     * live pipeline holds one that long.
+     */
+    public synchronized int getProbableLeaks() {
+        long now = SystemClock.uptimeMillis();
+        int leaks = 0;
+        for (Map.Entry<Bitmap, Long> entry : outstanding.entrySet()) {
+            if (now - entry.getValue() > LEAK_AGE_MS && !kept.contains(entry.getKey())) leaks++;
+        }
+        return leaks;
+    }
+
+    /**
+     * "bitmaps out 2 (max 3, leak 0) new 4 reused 120 recycled 0 idle 3MB".
+     */
+    public synchronized StringBuilder appendStats(StringBuilder builder) {
+        return builder.append("bitmaps out ").append(outstanding.size())
+                .append(" (max ").append(max_outstanding)
+                .append(", leak ").append(getProbableLeaks())
+                .append(") new ").append(created)
+                .append(" reused ").append(reused)
+                .append(" recycled ").append(recycled)
+                .append(" idle ").append((idle_bytes + 512 * 1024) / (1024 * 1024)).append("MB");
+    }
+}
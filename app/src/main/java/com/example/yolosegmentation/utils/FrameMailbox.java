@@ -0,0 +1,92 @@
+package com.example.yolosegmentation.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single-slot, latest-wins handoff between a producer (the camera analyzer) and a consumer
+ * running on an executor (the detector). Posting never blocks: a frame still waiting when the next
+ * one arrives is replaced and handed back so the caller can count it as dropped. The consumer is
+ * started on the executor only when it is idle and keeps draining the slot until it is empty, so a
+ * steady stream of frames doesn't post a task per frame.
+ *
+ * A failing handler is logged and the mailbox keeps going, the next frame is processed normally.
+ */
+public class FrameMailbox<T> {
+    private static final String TAG = "FrameMailbox";
+
+    public interface Handler<T> {
+        void handle(T frame) throws Exception;
+    }
+
+    private final AtomicReference<T> slot = new AtomicReference<>();
+    //the drain task is queued or running
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final Executor executor;
+    private final Handler<T> handler;
+    private volatile boolean closed = false;
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                T frame = slot.getAndSet(null);
+                if (frame == null || closed) {
+                    running.set(false);
+                    //a frame posted after the last take but before the flag was cleared
+                    if (closed || slot.get() == null || !running.compareAndSet(false, true)) return;
+                    continue;
+                }
+                try {
+                    handler.handle(frame);
+                } catch (Exception e) {
+                    Log.w(TAG, "frame failed: " + e);
+                }
+            }
+        }
+    };
+
+    public FrameMailbox(Executor executor, Handler<T> handler) {
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Hands a frame to the consumer.
+     *
+     * @return the frame it replaced, which will never be processed, or null
+     */
+    public T post(T frame) {
+        if (closed) return frame;
+        T replaced = slot.getAndSet(frame);
+        if (running.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                //the executor is shutting down
+                running.set(false);
+                slot.set(null);
+                return frame;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * True while the consumer is processing or about to process a frame.
+     */
+    public boolean isBusy() {
+        return running.get();
+    }
+
+    /**
+     * Drops the waiting frame and ignores later posts, a frame being processed finishes.
+     */
+    public void close() {
+        closed = true;
+        slot.set(null);
+    }
+}
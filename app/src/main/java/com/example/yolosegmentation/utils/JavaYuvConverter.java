@@ -0,0 +1,82 @@
+package com.example.yolosegmentation.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pure Java converter with BT.601 limited range coefficients in 10-bit fixed point, looked up from
+ * tables per sample instead of multiplied per pixel. Reads the planes through their row and pixel
+ * strides, so any YUV_420_888 layout works without repacking, and always works as a fallback.
+ */
+public class JavaYuvConverter implements YuvConverter {
+    //(255 << 10) | 1023, the largest fixed point value that is still 255
+    private static final int MAX = 262143;
+    private static final int[] Y = new int[256];
+    private static final int[] R_V = new int[256];
+    private static final int[] G_U = new int[256];
+    private static final int[] G_V = new int[256];
+    private static final int[] B_U = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y[i] = Math.max(0, 1192 * (i - 16));
+            R_V[i] = 1634 * (i - 128);
+            G_U[i] = -400 * (i - 128);
+            G_V[i] = -833 * (i - 128);
+            B_U[i] = 2066 * (i - 128);
+        }
+    }
+
+    private int[] pixels = new int[0];
+
+    @Override
+    public void convert(YuvFrame frame, Bitmap out) {
+        int width = frame.width;
+        int height = frame.height;
+        if (pixels.length < width * height) pixels = new int[width * height];
+        int[] pixels = this.pixels;
+        byte[] y = frame.y;
+        byte[] u = frame.u;
+        byte[] v = frame.v;
+        int pixel_stride = frame.uv_pixel_stride;
+        int p = 0;
+        for (int row = 0; row < height; row++) {
+            int y_index = row * frame.y_row_stride;
+            int uv_index = (row >> 1) * frame.uv_row_stride;
+            for (int col = 0; col < width; col += 2) {
+                //one chroma sample for two pixels
+                int u_value = u[uv_index] & 0xFF;
+                int v_value = v[uv_index] & 0xFF;
+                uv_index += pixel_stride;
+                int r_offset = R_V[v_value];
+                int g_offset = G_U[u_value] + G_V[v_value];
+                int b_offset = B_U[u_value];
+                pixels[p++] = argb(Y[y[y_index++] & 0xFF], r_offset, g_offset, b_offset);
+                if (col + 1 < width) {
+                    pixels[p++] = argb(Y[y[y_index++] & 0xFF], r_offset, g_offset, b_offset);
+                }
+            }
+        }
+        out.setPixels(pixels, 0, width, 0, 0, width, height);
+    }
+
+    private static int argb(int y, int r_offset, int g_offset, int b_offset) {
+        int r = clamp(y + r_offset);
+        int g = clamp(y + g_offset);
+        int b = clamp(y + b_offset);
+        return 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > MAX ? MAX : value);
+    }
+
+    @Override
+    public String name() {
+        return "java";
+    }
+
+    @Override
+    public void close() {
+        pixels = new int[0];
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.yolosegmentation.utils;
+
+import java.lang.reflect.Method;
+
+/**
+ * Per-thread allocated bytes from HotSpot's {@code com.sun.management.ThreadMXBean}, for the
+ * benchmark module and JVM tests. Everything goes through reflection so the class also compiles
+ * against the Android SDK, where {@link #create()} returns null.
+ *
+ * The reflective call boxes its argument and result, the bytes that costs are measured once and
+ * subtracted from every reading, which leaves differences accurate to a few dozen bytes.
+ */
+public class JvmAllocationCounter implements AllocationCounter {
+    private final Object bean;
+    private final Method get_thread_allocated_bytes;
+    private static class ThreadState {
+        final Object[] arguments = {Thread.currentThread().getId()};
+        long readings = 0;
+    }
+
+    private final ThreadLocal<ThreadState> states = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+    private long overhead = 0;
+
+    private JvmAllocationCounter(Object bean, Method get_thread_allocated_bytes) {
+        this.bean = bean;
+        this.get_thread_allocated_bytes = get_thread_allocated_bytes;
+    }
+
+    /**
+     * Null when the runtime doesn't expose thread allocation counters.
+     */
+    public static JvmAllocationCounter create() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Class<?> bean_class = Class.forName("com.sun.management.ThreadMXBean");
+            if (!bean_class.isInstance(bean)) return null;
+            Method method = bean_class.getMethod("getThreadAllocatedBytes", long.class);
+            JvmAllocationCounter counter = new JvmAllocationCounter(bean, method);
+            if (counter.read() < 0) return null;
+            counter.calibrate();
+            return counter;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private long read() {
+        try {
+            return (Long) get_thread_allocated_bytes.invoke(bean, states.get().arguments);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    //smallest difference between two back to back readings, after the JIT had a chance to settle
+    private void calibrate() {
+        long smallest = Long.MAX_VALUE;
+        for (int i = 0; i < 10_000; i++) {
+            long first = read();
+            long second = read();
+            smallest = Math.min(smallest, second - first);
+        }
+        overhead = Math.max(0, smallest);
+    }
+
+    @Override
+    public long thread_allocated_bytes() {
+        //every reading allocates overhead bytes, they are dropped so a stage that allocates
+        //nothing reads as 0
+        ThreadState state = states.get();
+        long raw = read();
+        return raw < 0 ? raw : raw - overhead * (++state.readings);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.yolosegmentation.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket latency histogram: geometric buckets from 10us growing by 12% up to ~20s, so a
+ * percentile is accurate to about 12% of its value. Recording is lock free and never allocates,
+ * it can be called from any thread on every frame.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 128;
+    private static final long MIN_NS = 10_000L;
+    private static final double GROWTH = 1.12;
+    //upper bound of every bucket, the last one also takes everything above it
+    private static final long[] UPPER_BOUNDS = new long[BUCKETS];
+
+    static {
+        double bound = MIN_NS;
+        for (int i = 0; i < BUCKETS; i++) {
+            UPPER_BOUNDS[i] = (long) bound;
+            bound *= GROWTH;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum_ns = new AtomicLong();
+    private final AtomicLong max_ns = new AtomicLong();
+
+    public void record(long duration_ns) {
+        if (duration_ns < 0) return;
+        counts.incrementAndGet(bucket(duration_ns));
+        count.incrementAndGet();
+        sum_ns.addAndGet(duration_ns);
+        long max;
+        while (duration_ns > (max = max_ns.get())) {
+            if (max_ns.compareAndSet(max, duration_ns)) break;
+        }
+    }
+
+    private static int bucket(long duration_ns) {
+        int low = 0;
+        int high = BUCKETS - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (UPPER_BOUNDS[middle] < duration_ns) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanNanos() {
+        long samples = count.get();
+        return samples == 0 ? 0 : sum_ns.get() / samples;
+    }
+
+    public long getMaxNanos() {
+        return max_ns.get();
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile (0-100), 0 when empty.
+     */
+    public long getPercentileNanos(double percentile) {
+        long samples = count.get();
+        if (samples == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(samples * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(UPPER_BOUNDS[i], max_ns.get());
+        }
+        return max_ns.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum_ns.set(0);
+        max_ns.set(0);
+    }
+
+    /**
+     * Appends "p50/p90/p99 max" in milliseconds without going through String.format.
+     */
+    public StringBuilder appendSummary(StringBuilder builder) {
+        append_millis(builder, getPercentileNanos(50)).append('/');
+        append_millis(builder, getPercentileNanos(90)).append('/');
+        append_millis(builder, getPercentileNanos(99)).append(" max ");
+        return append_millis(builder, getMaxNanos()).append("ms");
+    }
+
+    static StringBuilder append_millis(StringBuilder builder, long nanos) {
+        long tenths = (nanos + 50_000) / 100_000;
+        return builder.append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.yolosegmentation.utils;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Releases the native memory of every Mat created in a scope when the scope closes, instead of
+ * waiting for finalizers:
+ * <pre>
+ * try (MatScope scope = new MatScope()) {
+ *     Mat gray = scope.mat();
+ *     List&lt;MatOfPoint&gt; contours = scope.list();
+ *     Imgproc.findContours(..., contours, scope.mat(), ...);
+ * }
+ * </pre>
+ * Mats that must outlive the scope are handed over with {@link #keep(Mat)}. A scope is not
+ * thread safe and can be reused after {@link #close()}.
+ */
+public class MatScope implements AutoCloseable {
+    private final List<Mat> mats = new ArrayList<>();
+    private final List<List<? extends Mat>> lists = new ArrayList<>();
+
+    /**
+     * Tracks an existing Mat, e.g. the result of a call that returns a new Mat.
+     */
+    public <T extends Mat> T track(T mat) {
+        if (mat != null) mats.add(mat);
+        return mat;
+    }
+
+    public Mat mat() {
+        return track(new Mat());
+    }
+
+    public Mat mat(int rows, int cols, int type) {
+        return track(new Mat(rows, cols, type));
+    }
+
+    /**
+     * List whose elements are all released on close, for OpenCV outputs such as the contours of
+     * findContours that are added after the call.
+     */
+    public <T extends Mat> List<T> list() {
+        return track_list(new ArrayList<T>());
+    }
+
+    public <T extends Mat> List<T> track_list(List<T> list) {
+        lists.add(list);
+        return list;
+    }
+
+    /**
+     * Stops tracking a Mat, the caller owns it again.
+     */
+    public <T extends Mat> T keep(T mat) {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+                break;
+            }
+        }
+        for (List<? extends Mat> list : lists) {
+            list.remove(mat);
+        }
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            mats.get(i).release();
+        }
+        mats.clear();
+        for (List<? extends Mat> list : lists) {
+            for (Mat mat : list) mat.release();
+        }
+        lists.clear();
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.yolosegmentation.utils;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * OpenCV counterpart of {@link TensorSampler}: resamples a region of an 8 bit Mat into the float32
+ * RGB model input. The input ByteBuffer is wrapped as a CV_32FC3 Mat, so the last step
+ * ({@code convertTo} with the mean/std scaling) writes straight into the memory the engine reads,
+ * there is no Mat to Bitmap to TensorImage round trip. Resize and color conversion run on 8 bit
+ * scratch Mats kept by the instance, which is not thread safe, use one per worker.
+ */
+public class MatTensorSampler {
+    //pass as color_conversion when the source already is 8 bit RGB
+    public static final int NO_CONVERSION = -1;
+
+    /**
+     * Layout of an 8 bit camera frame. The YUV formats are single channel Mats of
+     * height * 3 / 2 rows, as the camera planes are laid out in memory.
+     */
+    public enum Format {
+        GRAY(Imgproc.COLOR_GRAY2RGB),
+        RGB(NO_CONVERSION),
+        BGR(Imgproc.COLOR_BGR2RGB),
+        RGBA(Imgproc.COLOR_RGBA2RGB),
+        BGRA(Imgproc.COLOR_BGRA2RGB),
+        YUV_NV21(Imgproc.COLOR_YUV2RGB_NV21),
+        YUV_NV12(Imgproc.COLOR_YUV2RGB_NV12),
+        YUV_I420(Imgproc.COLOR_YUV2RGB_I420);
+
+        public final int color_conversion;
+
+        Format(int color_conversion) {
+            this.color_conversion = color_conversion;
+        }
+
+        public boolean isYuv() {
+            return this == YUV_NV21 || this == YUV_NV12 || this == YUV_I420;
+        }
+
+        /**
+         * Image height of a frame Mat in this format.
+         */
+        public int height(Mat frame) {
+            return isYuv() ? frame.rows() * 2 / 3 : frame.rows();
+        }
+    }
+
+    private ByteBuffer view_buffer;
+    private Mat view;
+    private final Mat resized = new Mat();
+    private final Mat converted = new Mat();
+    private final Mat yuv_rgb = new Mat();
+    private final Size input_size = new Size();
+
+    /**
+     * CV_32FC3 Mat over {@code input}, which must be a direct buffer of at least
+     * input_width * input_height * 3 floats. The view is cached while the buffer and size stay the
+     * same.
+     */
+    public Mat view(ByteBuffer input, int input_width, int input_height) {
+        if (view == null || view_buffer != input || view.cols() != input_width || view.rows() != input_height) {
+            if (!input.isDirect()) throw new IllegalArgumentException("input tensor must be a direct buffer");
+            if (view != null) view.release();
+            view = new Mat(input_height, input_width, CvType.CV_32FC3, input);
+            view_buffer = input;
+        }
+        return view;
+    }
+
+    /**
+     * @param source           8 bit Mat, 1, 3 or 4 channels
+     * @param color_conversion Imgproc.COLOR_* code turning the source channels into RGB, e.g.
+     *                         COLOR_RGBA2RGB or COLOR_GRAY2RGB, or {@link #NO_CONVERSION}
+     */
+    public void sample(Mat source, int color_conversion,
+                       int x, int y, int width, int height,
+                       ByteBuffer out,
+                       int input_width, int input_height,
+                       float mean, float std) {
+        Mat tensor = view(out, input_width, input_height);
+        boolean whole = x == 0 && y == 0 && width == source.cols() && height == source.rows();
+        Mat region = whole ? source : source.submat(y, y + height, x, x + width);
+        try {
+            Mat sized = region;
+            if (width != input_width || height != input_height) {
+                //resize before the color conversion, the conversion then runs on input sized pixels
+                input_size.width = input_width;
+                input_size.height = input_height;
+                Imgproc.resize(region, resized, input_size, 0, 0, Imgproc.INTER_LINEAR);
+                sized = resized;
+            }
+            Mat rgb = sized;
+            if (color_conversion != NO_CONVERSION) {
+                Imgproc.cvtColor(sized, converted, color_conversion);
+                rgb = converted;
+            }
+            //anything else would make convertTo reallocate the view away from the tensor memory
+            if (rgb.channels() != 3) {
+                throw new IllegalArgumentException("expected 3 channels after conversion, got " + rgb.channels());
+            }
+            rgb.convertTo(tensor, CvType.CV_32F, 1.0 / std, -mean / std);
+        } finally {
+            if (!whole) region.release();
+        }
+        out.rewind();
+    }
+
+    public void sample(Mat source, int color_conversion, ByteBuffer out,
+                       int input_width, int input_height, float mean, float std) {
+        sample(source, color_conversion, 0, 0, source.cols(), source.rows(),
+                out, input_width, input_height, mean, std);
+    }
+
+    /**
+     * Samples a whole camera frame. Planar YUV is converted to RGB at full size first, since its
+     * planes can't be resized as one image.
+     */
+    public void sample(Mat frame, Format format, ByteBuffer out,
+                       int input_width, int input_height, float mean, float std) {
+        if (format.isYuv()) {
+            Imgproc.cvtColor(frame, yuv_rgb, format.color_conversion);
+            sample(yuv_rgb, NO_CONVERSION, out, input_width, input_height, mean, std);
+        } else {
+            sample(frame, format.color_conversion, out, input_width, input_height, mean, std);
+        }
+    }
+
+    /**
+     * Frees the scratch Mats and the view, the sampler can still be used afterwards.
+     */
+    public void release() {
+        resized.release();
+        converted.release();
+        yuv_rgb.release();
+        if (view != null) view.release();
+        view = null;
+        view_buffer = null;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.yolosegmentation.utils;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * OpenCV converter: NV21 frames go through {@link Imgproc#cvtColorTwoPlane} straight from the
+ * Y and VU planes (row strides handled with submats), other layouts are packed to I420 first.
+ * Needs OpenCV loaded.
+ */
+public class OpenCvYuvConverter implements YuvConverter {
+    private final Mat y_mat = new Mat();
+    private final Mat vu_mat = new Mat();
+    private final Mat i420 = new Mat();
+    private final Mat rgba = new Mat();
+    private byte[] scratch = new byte[0];
+
+    @Override
+    public void convert(YuvFrame frame, Bitmap out) {
+        int width = frame.width;
+        int height = frame.height;
+        if (frame.isNv21()) {
+            put(y_mat, height, frame.y_row_stride, CvType.CV_8UC1, frame.y, null);
+            put(vu_mat, height / 2, frame.uv_row_stride / 2, CvType.CV_8UC2, frame.v, frame.u);
+            Mat y = y_mat.submat(0, height, 0, width);
+            Mat vu = vu_mat.submat(0, height / 2, 0, width / 2);
+            try {
+                Imgproc.cvtColorTwoPlane(y, vu, rgba, Imgproc.COLOR_YUV2RGBA_NV21);
+            } finally {
+                y.release();
+                vu.release();
+            }
+        } else {
+            pack_i420(frame);
+            Imgproc.cvtColor(i420, rgba, Imgproc.COLOR_YUV2RGBA_I420);
+        }
+        Utils.matToBitmap(rgba, out);
+    }
+
+    /**
+     * Copies a plane into a Mat of {@code rows} x {@code cols} with the row stride as its width.
+     * Camera planes end right after the last sample instead of a full row, the tail is padded
+     * (from {@code next}, the plane overlapping this one, when there is one).
+     */
+    private void put(Mat mat, int rows, int cols, int type, byte[] plane, byte[] next) {
+        mat.create(rows, cols, type);
+        int size = (int) (mat.total() * mat.elemSize());
+        if (plane.length >= size) {
+            mat.put(0, 0, plane);
+            return;
+        }
+        if (scratch.length < size) scratch = new byte[size];
+        System.arraycopy(plane, 0, scratch, 0, plane.length);
+        for (int i = plane.length; i < size; i++) {
+            //in an interleaved VU buffer byte i is U sample i - 1
+            scratch[i] = next != null && i - 1 < next.length ? next[i - 1] : 0;
+        }
+        mat.put(0, 0, scratch, 0, size);
+    }
+
+    private void pack_i420(YuvFrame frame) {
+        int width = frame.width;
+        int height = frame.height;
+        int chroma_width = width / 2;
+        int chroma_height = height / 2;
+        int size = width * height + 2 * chroma_width * chroma_height;
+        if (scratch.length < size) scratch = new byte[size];
+        int p = 0;
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(frame.y, row * frame.y_row_stride, scratch, p, width);
+            p += width;
+        }
+        p = copy_chroma(frame, frame.u, p);
+        copy_chroma(frame, frame.v, p);
+        i420.create(height + chroma_height, width, CvType.CV_8UC1);
+        i420.put(0, 0, scratch, 0, size);
+    }
+
+    private int copy_chroma(YuvFrame frame, byte[] plane, int p) {
+        int chroma_width = frame.width / 2;
+        for (int row = 0; row < frame.height / 2; row++) {
+            int index = row * frame.uv_row_stride;
+            if (frame.uv_pixel_stride == 1) {
+                System.arraycopy(plane, index, scratch, p, chroma_width);
+                p += chroma_width;
+                continue;
+            }
+            for (int col = 0; col < chroma_width; col++) {
+                scratch[p++] = plane[index];
+                index += frame.uv_pixel_stride;
+            }
+        }
+        return p;
+    }
+
+    @Override
+    public String name() {
+        return "opencv";
+    }
+
+    @Override
+    public void close() {
+        y_mat.release();
+        vu_mat.release();
+        i420.release();
+        rgba.release();
+        scratch = new byte[0];
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.yolosegmentation.utils;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end counters of the live pipeline: how many camera frames came in, how many were dropped
+ * because a detection was still running, how many were processed and how many results reached
+ * the screen, plus the age of a frame (from its sensor timestamp) when its detections were ready
+ * and when they were drawn.
+ *
+ * The draw time is taken at the end of the overlay's onDraw, the frame still has to go through
+ * composition, so it is a lower bound of the glass to glass latency.
+ */
+public class PipelineStats {
+    //ages above this are treated as a clock mismatch rather than a real latency
+    private static final long MAX_AGE_NS = 10_000_000_000L;
+    private static PipelineStats instance;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rendered = new AtomicLong();
+    private final LatencyHistogram result_latency = new LatencyHistogram();
+    private final LatencyHistogram display_latency = new LatencyHistogram();
+
+    private PipelineStats() {
+    }
+
+    public static synchronized PipelineStats getInstance() {
+        if (instance == null) {
+            instance = new PipelineStats();
+        }
+        return instance;
+    }
+
+    public void frame_received() {
+        received.incrementAndGet();
+    }
+
+    public void frame_dropped() {
+        dropped.incrementAndGet();
+    }
+
+    public void frame_processed(long sensor_timestamp_ns) {
+        processed.incrementAndGet();
+        long age = age_nanos(sensor_timestamp_ns);
+        if (age >= 0) result_latency.record(age);
+    }
+
+    public void frame_rendered(long sensor_timestamp_ns) {
+        rendered.incrementAndGet();
+        long age = age_nanos(sensor_timestamp_ns);
+        if (age >= 0) display_latency.record(age);
+    }
+
+    /**
+     * Age of a CameraX frame timestamp, -1 when unknown. Depending on the device the sensor clock
+     * is elapsedRealtimeNanos (SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) or the monotonic clock
+     * behind System.nanoTime, the one giving a plausible age is used.
+     */
+    public static long age_nanos(long sensor_timestamp_ns) {
+        if (sensor_timestamp_ns <= 0) return -1;
+        long realtime_age = SystemClock.elapsedRealtimeNanos() - sensor_timestamp_ns;
+        long monotonic_age = System.nanoTime() - sensor_timestamp_ns;
+        long age = -1;
+        if (realtime_age >= 0 && realtime_age < MAX_AGE_NS) age = realtime_age;
+        if (monotonic_age >= 0 && monotonic_age < MAX_AGE_NS && (age < 0 || monotonic_age < age)) age = monotonic_age;
+        return age;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getRendered() {
+        return rendered.get();
+    }
+
+    /**
+     * Sensor timestamp to detections ready.
+     */
+    public LatencyHistogram getResultLatency() {
+        return result_latency;
+    }
+
+    /**
+     * Sensor timestamp to overlay drawn.
+     */
+    public LatencyHistogram getDisplayLatency() {
+        return display_latency;
+    }
+
+    public void reset() {
+        received.set(0);
+        dropped.set(0);
+        processed.set(0);
+        rendered.set(0);
+        result_latency.reset();
+        display_latency.reset();
+    }
+
+    public StringBuilder appendCounters(StringBuilder builder) {
+        return builder.append("frames ").append(received.get())
+                .append(" drop ").append(dropped.get())
+                .append(" proc ").append(processed.get())
+                .append(" draw ").append(rendered.get());
+    }
+
+    public StringBuilder appendReport(StringBuilder builder) {
+        appendCounters(builder).append('\n');
+        builder.append("age at result ");
+        result_latency.appendSummary(builder).append('\n');
+        builder.append("age at draw ");
+        return display_latency.appendSummary(builder).append('\n');
+    }
+
+    public String report() {
+        return appendReport(new StringBuilder()).toString();
+    }
+}
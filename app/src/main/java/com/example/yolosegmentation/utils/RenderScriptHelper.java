@@ -14,8 +14,6 @@ public class RenderScriptHelper {
 
     private RenderScript rs;
     private ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic;
-    private Type.Builder yuvType;
-    private Type.Builder rgbaType;
     private Allocation in;
     private Allocation out;
 
@@ -31,19 +29,19 @@ public class RenderScriptHelper {
         return instance;
     }
 
-    public Allocation renderScriptNV21ToRGBA888(int width, int height, byte[] nv21) {
-        if (yuvType == null) {
-            yuvType = new Type.Builder(rs, Element.U8(rs)).setX(nv21.length);
-        }
-        if (rgbaType == null) {
-            rgbaType = new Type.Builder(rs, Element.RGBA_8888(rs)).setX(width).setY(height);
-        }
-        // Create input allocation for YUV data
-        if (in == null) {
+    /**
+     * Allocations are kept between frames and recreated when the frame size changes, a smaller
+     * frame would otherwise be converted into the previous frame's layout.
+     */
+    public synchronized Allocation renderScriptNV21ToRGBA888(int width, int height, byte[] nv21) {
+        if (in == null || in.getType().getX() != nv21.length) {
+            if (in != null) in.destroy();
+            Type.Builder yuvType = new Type.Builder(rs, Element.U8(rs)).setX(nv21.length);
             in = Allocation.createTyped(rs, yuvType.create(), Allocation.USAGE_SCRIPT);
         }
-        // Create output allocation for RGBA data
-        if (out == null) {
+        if (out == null || out.getType().getX() != width || out.getType().getY() != height) {
+            if (out != null) out.destroy();
+            Type.Builder rgbaType = new Type.Builder(rs, Element.RGBA_8888(rs)).setX(width).setY(height);
             out = Allocation.createTyped(rs, rgbaType.create(), Allocation.USAGE_SCRIPT);
         }
 
@@ -54,14 +52,10 @@ public class RenderScriptHelper {
         return out;
     }
 
-    public static Bitmap getBitmapFromNV21(Context context, byte[] nv21, int width, int height) {
-        RenderScriptHelper rsHelper = getInstance(context);
-        //https://blog.minhazav.dev/how-to-convert-yuv-420-sp-android.media.Image-to-Bitmap-or-jpeg/
-        Allocation allocation = rsHelper.renderScriptNV21ToRGBA888(width, height, nv21);
-
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        allocation.copyTo(bitmap);
-
-        return bitmap;
+    /**
+     * Converts into a bitmap of the frame size.
+     */
+    public synchronized void nv21ToBitmap(byte[] nv21, int width, int height, Bitmap bitmap) {
+        renderScriptNV21ToRGBA888(width, height, nv21).copyTo(bitmap);
     }
 }
\ No newline at end of file
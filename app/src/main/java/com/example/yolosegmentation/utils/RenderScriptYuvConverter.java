@@ -0,0 +1,58 @@
+package com.example.yolosegmentation.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+/**
+ * RenderScript intrinsic converter through {@link RenderScriptHelper}. The intrinsic only takes
+ * NV21, frames in another layout (or with padded rows) are repacked into a reused buffer first.
+ */
+public class RenderScriptYuvConverter implements YuvConverter {
+    private final RenderScriptHelper helper;
+    private byte[] nv21 = new byte[0];
+
+    public RenderScriptYuvConverter(Context context) {
+        helper = RenderScriptHelper.getInstance(context);
+    }
+
+    @Override
+    public void convert(YuvFrame frame, Bitmap out) {
+        int width = frame.width;
+        int height = frame.height;
+        int size = width * height + 2 * (width / 2) * (height / 2);
+        if (nv21.length != size) nv21 = new byte[size];
+        int p = 0;
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(frame.y, row * frame.y_row_stride, nv21, p, width);
+            p += width;
+        }
+        boolean interleaved = frame.isNv21();
+        for (int row = 0; row < height / 2; row++) {
+            int index = row * frame.uv_row_stride;
+            if (interleaved) {
+                //VU pairs already in order, the last U of the buffer is only in the U plane
+                int length = Math.min(width - 1, frame.v.length - index);
+                System.arraycopy(frame.v, index, nv21, p, length);
+                nv21[p + width - 1] = frame.u[index + width - 2];
+                p += width;
+                continue;
+            }
+            for (int col = 0; col < width / 2; col++) {
+                nv21[p++] = frame.v[index];
+                nv21[p++] = frame.u[index];
+                index += frame.uv_pixel_stride;
+            }
+        }
+        helper.nv21ToBitmap(nv21, width, height, out);
+    }
+
+    @Override
+    public String name() {
+        return "renderscript";
+    }
+
+    @Override
+    public void close() {
+        nv21 = new byte[0];
+    }
+}
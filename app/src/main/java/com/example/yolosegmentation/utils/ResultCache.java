@@ -0,0 +1,311 @@
+package com.example.yolosegmentation.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Detections of images seen before, keyed by a hash of the image bytes plus the model, its version
+ * and the thresholds, so reopening the same capture skips inference and post-processing.
+ *
+ * Results are kept serialized (box, tag and polygons; label maps are not cached) in two tiers: an
+ * LRU of the most recent entries in memory, and on disk a memory-mapped open addressing index next
+ * to an append-only data file, so a lookup is a probe in the mapped index and one read. The disk
+ * tier is cleared as a whole when its data file or index is full. Every {@link #get} deserializes
+ * a fresh list, callers can modify it.
+ */
+public class ResultCache {
+    private static final String TAG = "ResultCache";
+    private static final int MAGIC = 0x52435631;
+    private static final int HEADER_BYTES = 16;
+    //content key, params key, data offset, record length, padding
+    private static final int SLOT_BYTES = 32;
+    public static final int DEFAULT_MEMORY_ENTRIES = 32;
+    public static final int DEFAULT_SLOTS = 4096;
+    public static final long DEFAULT_MAX_DISK_BYTES = 16L * 1024 * 1024;
+    private static ResultCache instance;
+
+    public static class Key {
+        final long content;
+        final long params;
+
+        public Key(long content, long params) {
+            this.content = content;
+            this.params = params;
+        }
+
+        /**
+         * @param content       from {@link #content_hash}
+         * @param model         identifies the model and its options, e.g. a ModelCache key
+         * @param model_version identifies the model file, e.g. {@code Yolo.model_version}, so
+         *                      results of a model replaced by an app update are not reused
+         */
+        public static Key of(long content, String model, String model_version, float iou_threshold,
+                             float conf_threshold, float class_threshold) {
+            CRC32 crc = new CRC32();
+            crc.update((model + "|" + model_version + "|" + iou_threshold + "|" + conf_threshold
+                    + "|" + class_threshold).getBytes(StandardCharsets.UTF_8));
+            //length of the model id in the upper half, the CRC alone is only 32 bits
+            return new Key(content, ((long) model.length() << 32) | crc.getValue());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return content == key.content && params == key.params;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(content * 31 + params);
+        }
+    }
+
+    private final LinkedHashMap<Key, byte[]> memory;
+    private final File index_file;
+    private final File data_file;
+    private final int slots;
+    private final long max_disk_bytes;
+    private RandomAccessFile index_access;
+    private MappedByteBuffer index;
+    private RandomAccessFile data;
+
+    public static synchronized ResultCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ResultCache(new File(context.getCacheDir(), "results"),
+                    DEFAULT_MEMORY_ENTRIES, DEFAULT_SLOTS, DEFAULT_MAX_DISK_BYTES);
+        }
+        return instance;
+    }
+
+    public ResultCache(File directory, final int memory_entries, int slots, long max_disk_bytes) {
+        this.memory = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > memory_entries;
+            }
+        };
+        this.index_file = new File(directory, "index.bin");
+        this.data_file = new File(directory, "data.bin");
+        this.slots = slots;
+        this.max_disk_bytes = max_disk_bytes;
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("unable to create " + directory);
+            }
+            open();
+        } catch (IOException e) {
+            //the memory tier still works
+            Log.w(TAG, "disk tier disabled: " + e);
+            close_disk();
+        }
+    }
+
+    /**
+     * 64 bit hash of a stream (CRC32 and Adler32 side by side), read to the end but not closed.
+     */
+    public static long content_hash(InputStream stream) throws IOException {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+            crc.update(buffer, 0, read);
+            adler.update(buffer, 0, read);
+        }
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * Cached results or null.
+     */
+    public synchronized List<Map<String, Object>> get(Key key) {
+        byte[] record = memory.get(key);
+        if (record == null && index != null) {
+            record = read_disk(key);
+            if (record != null) memory.put(key, record);
+        }
+        if (record == null) return null;
+        try {
+            return deserialize(record);
+        } catch (IOException e) {
+            Log.w(TAG, "corrupt entry: " + e);
+            memory.remove(key);
+            return null;
+        }
+    }
+
+    public synchronized void put(Key key, List<Map<String, Object>> results) {
+        byte[] record;
+        try {
+            record = serialize(results);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to serialize results: " + e);
+            return;
+        }
+        memory.put(key, record);
+        if (index == null) return;
+        try {
+            write_disk(key, record);
+        } catch (IOException e) {
+            Log.w(TAG, "disk tier disabled: " + e);
+            close_disk();
+        }
+    }
+
+    public synchronized void close() {
+        memory.clear();
+        close_disk();
+    }
+
+    private void open() throws IOException {
+        long index_bytes = HEADER_BYTES + (long) slots * SLOT_BYTES;
+        index_access = new RandomAccessFile(index_file, "rw");
+        boolean valid = index_access.length() == index_bytes;
+        index_access.setLength(index_bytes);
+        index = index_access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, index_bytes);
+        data = new RandomAccessFile(data_file, "rw");
+        if (!valid || index.getInt(0) != MAGIC || index.getInt(4) != slots) clear_disk();
+    }
+
+    private void clear_disk() throws IOException {
+        for (int i = 0; i < index.capacity(); i += 8) index.putLong(i, 0);
+        index.putInt(0, MAGIC);
+        index.putInt(4, slots);
+        data.setLength(0);
+    }
+
+    private void close_disk() {
+        index = null;
+        try {
+            if (index_access != null) index_access.close();
+            if (data != null) data.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed: " + e);
+        }
+        index_access = null;
+        data = null;
+    }
+
+    int slot_of(Key key) {
+        long hash = key.content ^ (key.params * 0x9E3779B97F4A7C15L);
+        return (int) ((hash >>> 1) % slots);
+    }
+
+    private byte[] read_disk(Key key) {
+        int slot = slot_of(key);
+        for (int probe = 0; probe < slots; probe++) {
+            int position = HEADER_BYTES + slot * SLOT_BYTES;
+            int length = index.getInt(position + 24);
+            if (length == 0) return null;
+            if (index.getLong(position) == key.content && index.getLong(position + 8) == key.params) {
+                long offset = index.getLong(position + 16);
+                try {
+                    //a record the data file doesn't hold (e.g. cut short by a crash) is a miss
+                    if (offset + length > data.length()) return null;
+                    byte[] record = new byte[length];
+                    data.seek(offset);
+                    data.readFully(record);
+                    return record;
+                } catch (IOException e) {
+                    Log.w(TAG, "read failed: " + e);
+                    return null;
+                }
+            }
+            slot = (slot + 1) % slots;
+        }
+        return null;
+    }
+
+    private void write_disk(Key key, byte[] record) throws IOException {
+        int count = index.getInt(8);
+        if (count >= slots * 3 / 4 || data.length() + record.length > max_disk_bytes) {
+            clear_disk();
+            count = 0;
+        }
+        //the record goes in before the index entry pointing at it
+        long offset = data.length();
+        data.seek(offset);
+        data.write(record);
+        int slot = slot_of(key);
+        while (true) {
+            int position = HEADER_BYTES + slot * SLOT_BYTES;
+            boolean empty = index.getInt(position + 24) == 0;
+            if (empty || (index.getLong(position) == key.content && index.getLong(position + 8) == key.params)) {
+                index.putLong(position, key.content);
+                index.putLong(position + 8, key.params);
+                index.putLong(position + 16, offset);
+                index.putInt(position + 24, record.length);
+                if (empty) index.putInt(8, count + 1);
+                return;
+            }
+            slot = (slot + 1) % slots;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static byte[] serialize(List<Map<String, Object>> results) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(results.size());
+        for (Map<String, Object> result : results) {
+            float[] box = (float[]) result.get("box");
+            for (int i = 0; i < 5; i++) out.writeFloat(box[i]);
+            Object tag = result.get("tag");
+            out.writeUTF(tag == null ? "" : tag.toString());
+            List<Map<String, Double>> polygon = (List<Map<String, Double>>) result.get("polygons");
+            out.writeInt(polygon == null ? 0 : polygon.size());
+            if (polygon == null) continue;
+            for (Map<String, Double> vertex : polygon) {
+                out.writeFloat(vertex.get("x").floatValue());
+                out.writeFloat(vertex.get("y").floatValue());
+            }
+        }
+        out.flush();
+        //never empty, a length of 0 marks a free index slot
+        return bytes.toByteArray();
+    }
+
+    static List<Map<String, Object>> deserialize(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int count = in.readInt();
+        List<Map<String, Object>> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> result = new HashMap<>();
+            float[] box = new float[5];
+            for (int j = 0; j < 5; j++) box[j] = in.readFloat();
+            result.put("box", box);
+            result.put("tag", in.readUTF());
+            int points = in.readInt();
+            List<Map<String, Double>> polygon = new ArrayList<>(points);
+            for (int j = 0; j < points; j++) {
+                Map<String, Double> vertex = new HashMap<>();
+                vertex.put("x", (double) in.readFloat());
+                vertex.put("y", (double) in.readFloat());
+                polygon.add(vertex);
+            }
+            result.put("polygons", polygon);
+            results.add(result);
+        }
+        return results;
+    }
+}
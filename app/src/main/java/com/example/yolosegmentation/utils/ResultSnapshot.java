@@ -0,0 +1,25 @@
+package com.example.yolosegmentation.utils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detections of one camera frame as published by the detector: the list can't be modified and
+ * carries the size and timestamp of the frame it belongs to, so readers on other threads never
+ * see a result paired with the size of another frame.
+ */
+public class ResultSnapshot {
+    public final List<Map<String, Object>> detections;
+    public final long sensor_timestamp_ns;
+    public final int frame_width;
+    public final int frame_height;
+
+    public ResultSnapshot(List<Map<String, Object>> detections, long sensor_timestamp_ns,
+                          int frame_width, int frame_height) {
+        this.detections = Collections.unmodifiableList(detections);
+        this.sensor_timestamp_ns = sensor_timestamp_ns;
+        this.frame_width = frame_width;
+        this.frame_height = frame_height;
+    }
+}
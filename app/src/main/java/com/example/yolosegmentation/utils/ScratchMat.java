@@ -0,0 +1,38 @@
+package com.example.yolosegmentation.utils;
+
+import org.opencv.core.Mat;
+
+/**
+ * Per-thread Mat kept across frames for a buffer whose size rarely changes (masks, hierarchies).
+ * {@link #get} only reallocates when the requested size or type differs from the last one, so a
+ * steady stream of frames reuses the same native buffer. The Mat belongs to the ScratchMat, callers
+ * must not release it or keep it past the current frame.
+ */
+public class ScratchMat {
+    private final ThreadLocal<Mat> mats = new ThreadLocal<Mat>() {
+        @Override
+        protected Mat initialValue() {
+            return new Mat();
+        }
+    };
+
+    public Mat get(int rows, int cols, int type) {
+        Mat mat = mats.get();
+        mat.create(rows, cols, type);
+        return mat;
+    }
+
+    /**
+     * Empty Mat for OpenCV outputs that size themselves, e.g. a findContours hierarchy.
+     */
+    public Mat get() {
+        return mats.get();
+    }
+
+    /**
+     * Frees the calling thread's buffer, e.g. when a worker thread is about to finish.
+     */
+    public void release() {
+        mats.get().release();
+    }
+}
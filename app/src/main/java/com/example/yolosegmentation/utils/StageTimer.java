@@ -0,0 +1,251 @@
+package com.example.yolosegmentation.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency of the detection pipeline, one {@link LatencyHistogram} per {@link Stage},
+ * and optionally the bytes each stage allocates.
+ *
+ * Stages are timed where they run, on whatever thread that is:
+ * <pre>
+ * long start = StageTimer.getInstance().start(StageTimer.Stage.INFERENCE);
+ * ...
+ * StageTimer.getInstance().stop(StageTimer.Stage.INFERENCE, start);
+ * </pre>
+ * Neither call allocates. A stage that runs several times per frame (masks, contours) is summed
+ * by the caller with {@link #now()} and {@link #allocated_bytes()} and recorded once, so every
+ * histogram holds per-frame values. It is disabled by default and then costs a volatile read per
+ * call.
+ *
+ * Allocation accounting is on once an {@link AllocationCounter} is set. With a budget set by
+ * {@link #setAllocationBudget}, a stage going over it after its warm-up frames is counted as a
+ * violation, or throws {@link AllocationBudgetExceededException} in strict mode, which is how
+ * tests keep allocation-free paths allocation-free.
+ */
+public class StageTimer {
+    public enum Stage {
+        CAMERA_COPY("camera copy"),
+        YUV("yuv"),
+        PREPROCESS("preprocess"),
+        INFERENCE("inference"),
+        DECODE("decode"),
+        NMS("nms"),
+        MASK("mask"),
+        CONTOUR("contour"),
+        RENDER("render");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    public static class AllocationBudgetExceededException extends IllegalStateException {
+        public AllocationBudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Allocations {
+        final AtomicLong samples = new AtomicLong();
+        final AtomicLong total_bytes = new AtomicLong();
+        final AtomicLong max_bytes = new AtomicLong();
+        final AtomicLong violations = new AtomicLong();
+        //-1 means no budget
+        volatile long budget_bytes = -1;
+        volatile int warmup_frames = 0;
+
+        void reset() {
+            samples.set(0);
+            total_bytes.set(0);
+            max_bytes.set(0);
+            violations.set(0);
+        }
+    }
+
+    private static StageTimer instance;
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private final Allocations[] allocations = new Allocations[STAGES.length];
+    //allocated bytes of the current thread when each stage started
+    private final ThreadLocal<long[]> allocation_starts = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[STAGES.length];
+        }
+    };
+    private volatile boolean enabled = false;
+    private volatile AllocationCounter allocation_counter;
+    private volatile boolean strict = false;
+
+    private StageTimer() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            allocations[i] = new Allocations();
+        }
+    }
+
+    public static synchronized StageTimer getInstance() {
+        if (instance == null) {
+            instance = new StageTimer();
+        }
+        return instance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns allocation accounting on, null turns it off.
+     */
+    public void setAllocationCounter(AllocationCounter allocation_counter) {
+        this.allocation_counter = allocation_counter;
+    }
+
+    /**
+     * Bytes a stage may allocate per frame once {@code warmup_frames} frames went through it,
+     * -1 removes the budget.
+     */
+    public void setAllocationBudget(Stage stage, long budget_bytes, int warmup_frames) {
+        Allocations stage_allocations = allocations[stage.ordinal()];
+        stage_allocations.warmup_frames = warmup_frames;
+        stage_allocations.budget_bytes = budget_bytes;
+    }
+
+    /**
+     * In strict mode a stage over its budget throws from {@link #stop} or {@link #record}.
+     */
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    /**
+     * Start timestamp to hand to {@link #stop}, 0 when disabled.
+     */
+    public long start(Stage stage) {
+        if (!enabled) return 0;
+        AllocationCounter counter = allocation_counter;
+        if (counter != null) {
+            allocation_starts.get()[stage.ordinal()] = counter.thread_allocated_bytes();
+        }
+        return System.nanoTime();
+    }
+
+    public void stop(Stage stage, long start) {
+        if (!enabled || start == 0) return;
+        long duration = System.nanoTime() - start;
+        AllocationCounter counter = allocation_counter;
+        long bytes = counter == null ? -1
+                : counter.thread_allocated_bytes() - allocation_starts.get()[stage.ordinal()];
+        record(stage, duration, bytes);
+    }
+
+    /**
+     * Clock for stages the caller sums itself, 0 when disabled.
+     */
+    public long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, -1 when allocations aren't tracked.
+     */
+    public long allocated_bytes() {
+        AllocationCounter counter = allocation_counter;
+        return enabled && counter != null ? counter.thread_allocated_bytes() : -1;
+    }
+
+    public void record(Stage stage, long duration_ns) {
+        record(stage, duration_ns, -1);
+    }
+
+    /**
+     * @param allocated_bytes bytes the stage allocated in this frame, negative when unknown
+     */
+    public void record(Stage stage, long duration_ns, long allocated_bytes) {
+        if (!enabled) return;
+        histograms[stage.ordinal()].record(duration_ns);
+        if (allocated_bytes < 0) return;
+
+        Allocations stage_allocations = allocations[stage.ordinal()];
+        long samples = stage_allocations.samples.incrementAndGet();
+        stage_allocations.total_bytes.addAndGet(allocated_bytes);
+        long max;
+        while (allocated_bytes > (max = stage_allocations.max_bytes.get())) {
+            if (stage_allocations.max_bytes.compareAndSet(max, allocated_bytes)) break;
+        }
+        long budget = stage_allocations.budget_bytes;
+        if (budget >= 0 && samples > stage_allocations.warmup_frames && allocated_bytes > budget) {
+            stage_allocations.violations.incrementAndGet();
+            if (strict) {
+                throw new AllocationBudgetExceededException(stage.label + " allocated " + allocated_bytes
+                        + " bytes, budget is " + budget);
+            }
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Mean bytes allocated per frame by the stage, -1 when nothing was measured.
+     */
+    public long getMeanAllocatedBytes(Stage stage) {
+        Allocations stage_allocations = allocations[stage.ordinal()];
+        long samples = stage_allocations.samples.get();
+        return samples == 0 ? -1 : stage_allocations.total_bytes.get() / samples;
+    }
+
+    public long getMaxAllocatedBytes(Stage stage) {
+        return allocations[stage.ordinal()].max_bytes.get();
+    }
+
+    public long getBudgetViolations(Stage stage) {
+        return allocations[stage.ordinal()].violations.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) histogram.reset();
+        for (Allocations stage_allocations : allocations) stage_allocations.reset();
+    }
+
+    /**
+     * One line per stage that has samples: "inference 12.3/15.0/22.1 max 30.2ms 4KB", reusing the
+     * caller's builder. The allocation column only shows up when allocations are tracked.
+     */
+    public StringBuilder appendReport(StringBuilder builder) {
+        for (Stage stage : STAGES) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() == 0) continue;
+            builder.append(stage.label).append(' ');
+            histogram.appendSummary(builder);
+            appendAllocations(builder, stage).append('\n');
+        }
+        return builder;
+    }
+
+    /**
+     * Appends " mean/max KB" allocated per frame by the stage, nothing when not measured.
+     */
+    public StringBuilder appendAllocations(StringBuilder builder, Stage stage) {
+        long mean = getMeanAllocatedBytes(stage);
+        if (mean < 0) return builder;
+        builder.append(' ').append((mean + 512) / 1024).append('/')
+                .append((getMaxAllocatedBytes(stage) + 512) / 1024).append("KB");
+        long violations = getBudgetViolations(stage);
+        if (violations > 0) builder.append(" over budget ").append(violations);
+        return builder;
+    }
+
+    public String report() {
+        return appendReport(new StringBuilder()).toString();
+    }
+}
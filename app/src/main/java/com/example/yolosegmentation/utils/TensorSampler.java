@@ -0,0 +1,275 @@
+package com.example.yolosegmentation.utils;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bilinear resampler that writes a rectangular region of a Bitmap straight into a float32 RGB
+ * input tensor, fetching only the two source rows needed for each output row. Unlike
+ * {@link FeedInputTensorHelper} it never materializes a copy of the region, so it can be used on
+ * tiles of very large images. Instances keep their row buffers and are not thread safe, use one
+ * per worker. {@link MatTensorSampler} does the same for frames that already are OpenCV Mats.
+ *
+ * With a rotation the source is read in rotated order while resizing, so a camera frame in sensor
+ * orientation feeds an upright tensor without rotating the whole bitmap first.
+ *
+ * Sources other than bitmaps (e.g. pixel arrays in tests) go through {@link PixelSource}.
+ */
+public class TensorSampler {
+    /**
+     * ARGB pixels read the way {@link Bitmap#getPixels} reads them.
+     */
+    public interface PixelSource {
+        int getWidth();
+
+        int getHeight();
+
+        void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+    }
+
+    private static class BitmapSource implements PixelSource {
+        Bitmap bitmap;
+
+        @Override
+        public int getWidth() {
+            return bitmap.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return bitmap.getHeight();
+        }
+
+        @Override
+        public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+            bitmap.getPixels(pixels, offset, stride, x, y, width, height);
+        }
+    }
+
+    //wraps the bitmap of the current call, so sampling a bitmap allocates nothing
+    private final BitmapSource bitmap_source = new BitmapSource();
+    private int[] row0 = new int[0];
+    private int[] row1 = new int[0];
+    private int row0_index = -1;
+    private int row1_index = -1;
+    private int[] col0 = new int[0];
+    private int[] col1 = new int[0];
+    private float[] col_frac = new float[0];
+    //rotated sampling: the source region and, per output row and column, offsets into it
+    private int[] pixels = new int[0];
+    private int[] row_offset0 = new int[0];
+    private int[] row_offset1 = new int[0];
+    private float[] row_frac = new float[0];
+    private int[] col_offset0 = new int[0];
+    private int[] col_offset1 = new int[0];
+    private float[] rotated_col_frac = new float[0];
+
+    public static ByteBuffer allocateInput(int input_width, int input_height) {
+        return ByteBuffer.allocateDirect(input_width * input_height * 3 * 4)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    public void sample(Bitmap source,
+                       int x, int y, int width, int height,
+                       ByteBuffer out,
+                       int input_width, int input_height,
+                       float mean, float std) {
+        bitmap_source.bitmap = source;
+        try {
+            sample(bitmap_source, x, y, width, height, out, input_width, input_height, mean, std);
+        } finally {
+            bitmap_source.bitmap = null;
+        }
+    }
+
+    public void sample(PixelSource source,
+                       int x, int y, int width, int height,
+                       ByteBuffer out,
+                       int input_width, int input_height,
+                       float mean, float std) {
+        if (row0.length < width) {
+            row0 = new int[width];
+            row1 = new int[width];
+        }
+        row0_index = -1;
+        row1_index = -1;
+        prepare_columns(width, input_width);
+
+        float scale_y = height / (float) input_height;
+        float inv_std = 1f / std;
+        out.rewind();
+        for (int oy = 0; oy < input_height; oy++) {
+            float sy = Math.max((oy + 0.5f) * scale_y - 0.5f, 0f);
+            int y0 = Math.min((int) sy, height - 1);
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            fetch_rows(source, x, y + y0, y + y1, width);
+            for (int ox = 0; ox < input_width; ox++) {
+                int c0 = col0[ox];
+                int c1 = col1[ox];
+                float fx = col_frac[ox];
+                int p00 = row0[c0], p01 = row0[c1], p10 = row1[c0], p11 = row1[c1];
+                out.putFloat((lerp(p00, p01, p10, p11, 16, fx, fy) - mean) * inv_std);
+                out.putFloat((lerp(p00, p01, p10, p11, 8, fx, fy) - mean) * inv_std);
+                out.putFloat((lerp(p00, p01, p10, p11, 0, fx, fy) - mean) * inv_std);
+            }
+        }
+        out.rewind();
+    }
+
+    /**
+     * Samples a region given in the coordinates of the source rotated clockwise by
+     * {@code rotation} degrees (a multiple of 90), into an upright tensor. The source region is
+     * fetched once and read in rotated order, nothing is rotated beforehand.
+     */
+    public void sample(Bitmap source, int rotation,
+                       int x, int y, int width, int height,
+                       ByteBuffer out,
+                       int input_width, int input_height,
+                       float mean, float std) {
+        bitmap_source.bitmap = source;
+        try {
+            sample(bitmap_source, rotation, x, y, width, height, out, input_width, input_height, mean, std);
+        } finally {
+            bitmap_source.bitmap = null;
+        }
+    }
+
+    public void sample(PixelSource source, int rotation,
+                       int x, int y, int width, int height,
+                       ByteBuffer out,
+                       int input_width, int input_height,
+                       float mean, float std) {
+        rotation = ((rotation % 360) + 360) % 360;
+        if (rotation == 0) {
+            sample(source, x, y, width, height, out, input_width, input_height, mean, std);
+            return;
+        }
+        int source_width = source.getWidth();
+        int source_height = source.getHeight();
+        boolean swap = rotation != 180;
+        //region of the source under the rotated region
+        int left, top;
+        if (rotation == 90) {
+            left = y;
+            top = source_height - x - width;
+        } else if (rotation == 180) {
+            left = source_width - x - width;
+            top = source_height - y - height;
+        } else {
+            left = source_width - y - height;
+            top = x;
+        }
+        int region_width = swap ? height : width;
+        int region_height = swap ? width : height;
+        if (pixels.length < region_width * region_height) pixels = new int[region_width * region_height];
+        source.getPixels(pixels, 0, region_width, left, top, region_width, region_height);
+
+        //output columns walk the rotated x axis, rows the rotated y axis. For 90 the rotated point
+        //(u, v) is source (v, width - 1 - u), for 180 (width - 1 - u, height - 1 - v) and for 270
+        //(height - 1 - v, u)
+        boolean flip_u = rotation != 270;
+        boolean flip_v = rotation != 90;
+        if (col_offset0.length != input_width) {
+            col_offset0 = new int[input_width];
+            col_offset1 = new int[input_width];
+            rotated_col_frac = new float[input_width];
+        }
+        prepare_axis(width, input_width, flip_u, swap ? region_width : 1, col_offset0, col_offset1, rotated_col_frac);
+        if (row_offset0.length != input_height) {
+            row_offset0 = new int[input_height];
+            row_offset1 = new int[input_height];
+            row_frac = new float[input_height];
+        }
+        prepare_axis(height, input_height, flip_v, swap ? 1 : region_width, row_offset0, row_offset1, row_frac);
+
+        int[] pixels = this.pixels;
+        float inv_std = 1f / std;
+        out.rewind();
+        for (int oy = 0; oy < input_height; oy++) {
+            int r0 = row_offset0[oy];
+            int r1 = row_offset1[oy];
+            float fy = row_frac[oy];
+            for (int ox = 0; ox < input_width; ox++) {
+                int c0 = col_offset0[ox];
+                int c1 = col_offset1[ox];
+                float fx = rotated_col_frac[ox];
+                int p00 = pixels[r0 + c0], p01 = pixels[r0 + c1], p10 = pixels[r1 + c0], p11 = pixels[r1 + c1];
+                out.putFloat((lerp(p00, p01, p10, p11, 16, fx, fy) - mean) * inv_std);
+                out.putFloat((lerp(p00, p01, p10, p11, 8, fx, fy) - mean) * inv_std);
+                out.putFloat((lerp(p00, p01, p10, p11, 0, fx, fy) - mean) * inv_std);
+            }
+        }
+        out.rewind();
+    }
+
+    /**
+     * Bilinear taps along one rotated axis of {@code length} pixels: the two source offsets
+     * ({@code stride} apart per pixel, counted from the far end when flipped) and the weight of
+     * the second one.
+     */
+    private static void prepare_axis(int length, int input_length, boolean flip, int stride,
+                                     int[] offset0, int[] offset1, float[] frac) {
+        float scale = length / (float) input_length;
+        for (int o = 0; o < input_length; o++) {
+            float s = Math.max((o + 0.5f) * scale - 0.5f, 0f);
+            int s0 = Math.min((int) s, length - 1);
+            int s1 = Math.min(s0 + 1, length - 1);
+            if (flip) {
+                s0 = length - 1 - s0;
+                s1 = length - 1 - s1;
+            }
+            offset0[o] = s0 * stride;
+            offset1[o] = s1 * stride;
+            frac[o] = s - Math.min((int) s, length - 1);
+        }
+    }
+
+    private void prepare_columns(int width, int input_width) {
+        if (col0.length != input_width) {
+            col0 = new int[input_width];
+            col1 = new int[input_width];
+            col_frac = new float[input_width];
+        }
+        float scale_x = width / (float) input_width;
+        for (int ox = 0; ox < input_width; ox++) {
+            float sx = Math.max((ox + 0.5f) * scale_x - 0.5f, 0f);
+            int x0 = Math.min((int) sx, width - 1);
+            col0[ox] = x0;
+            col1[ox] = Math.min(x0 + 1, width - 1);
+            col_frac[ox] = sx - x0;
+        }
+    }
+
+    private void fetch_rows(PixelSource source, int x, int y0, int y1, int width) {
+        if (row0_index != y0) {
+            if (row1_index == y0) {
+                //moving down one row, reuse the previous bottom row as the new top row
+                int[] tmp = row0;
+                row0 = row1;
+                row1 = tmp;
+                row0_index = y0;
+                row1_index = -1;
+            } else {
+                source.getPixels(row0, 0, width, x, y0, width, 1);
+                row0_index = y0;
+            }
+        }
+        if (row1_index != y1) {
+            if (y1 == y0) {
+                System.arraycopy(row0, 0, row1, 0, width);
+            } else {
+                source.getPixels(row1, 0, width, x, y1, width, 1);
+            }
+            row1_index = y1;
+        }
+    }
+
+    private static float lerp(int p00, int p01, int p10, int p11, int shift, float fx, float fy) {
+        float top = ((p00 >> shift) & 0xFF) + (((p01 >> shift) & 0xFF) - ((p00 >> shift) & 0xFF)) * fx;
+        float bottom = ((p10 >> shift) & 0xFF) + (((p11 >> shift) & 0xFF) - ((p10 >> shift) & 0xFF)) * fx;
+        return top + (bottom - top) * fy;
+    }
+}
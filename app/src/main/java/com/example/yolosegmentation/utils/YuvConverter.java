@@ -0,0 +1,19 @@
+package com.example.yolosegmentation.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * Converts camera YUV_420_888 frames to ARGB_8888 bitmaps. Implementations keep scratch buffers
+ * between frames and are used from one thread at a time, {@link YuvConverterSelector} picks the
+ * fastest one on the device.
+ */
+public interface YuvConverter {
+    /**
+     * Converts {@code frame} into {@code out}, which has the size of the frame.
+     */
+    void convert(YuvFrame frame, Bitmap out);
+
+    String name();
+
+    void close();
+}
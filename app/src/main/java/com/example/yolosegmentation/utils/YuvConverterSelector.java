@@ -0,0 +1,112 @@
+package com.example.yolosegmentation.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks the fastest {@link YuvConverter} on the device with a short benchmark on a synthetic
+ * NV21 frame: every backend is warmed up and timed, the one with the lowest median wins.
+ * Backends that fail (RenderScript is deprecated and missing on some devices, OpenCV may not be
+ * loaded) are skipped, the Java converter always works.
+ */
+public class YuvConverterSelector {
+    private static final String TAG = "YuvConverterSelector";
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 10;
+
+    private static String results = "";
+
+    /**
+     * Runs the benchmark at the given frame size, takes some 100ms, call it off the UI thread.
+     * The returned converter is owned by the caller, the others are closed.
+     */
+    public static YuvConverter select(Context context, int width, int height) {
+        List<YuvConverter> candidates = new ArrayList<>();
+        candidates.add(new JavaYuvConverter());
+        candidates.add(new OpenCvYuvConverter());
+        try {
+            candidates.add(new RenderScriptYuvConverter(context));
+        } catch (Throwable e) {
+            Log.w(TAG, "renderscript unavailable: " + e);
+        }
+
+        YuvFrame frame = synthetic_frame(width, height);
+        Bitmap bitmap = BitmapPool.getInstance().acquire(width, height, Bitmap.Config.ARGB_8888);
+        YuvConverter best = null;
+        long best_ns = Long.MAX_VALUE;
+        StringBuilder builder = new StringBuilder("yuv");
+        try {
+            for (YuvConverter converter : candidates) {
+                long ns;
+                try {
+                    ns = benchmark(converter, frame, bitmap);
+                } catch (Throwable e) {
+                    Log.w(TAG, converter.name() + " failed: " + e);
+                    builder.append(' ').append(converter.name()).append(" failed");
+                    continue;
+                }
+                builder.append(' ').append(converter.name()).append(' ')
+                        .append(String.format("%.2f", ns / 1e6)).append("ms");
+                if (ns < best_ns) {
+                    best = converter;
+                    best_ns = ns;
+                }
+            }
+        } finally {
+            BitmapPool.getInstance().release(bitmap);
+        }
+        if (best == null) best = candidates.get(0);
+        for (YuvConverter converter : candidates) {
+            if (converter != best) converter.close();
+        }
+        builder.append(", using ").append(best.name());
+        synchronized (YuvConverterSelector.class) {
+            results = builder.toString();
+        }
+        Log.i(TAG, builder.toString());
+        return best;
+    }
+
+    /**
+     * "yuv java 4.10ms opencv 1.52ms renderscript 2.30ms, using opencv", empty before a selection.
+     */
+    public static synchronized String getResults() {
+        return results;
+    }
+
+    private static long benchmark(YuvConverter converter, YuvFrame frame, Bitmap bitmap) {
+        for (int i = 0; i < WARMUP_RUNS; i++) converter.convert(frame, bitmap);
+        long[] times = new long[TIMED_RUNS];
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            converter.convert(frame, bitmap);
+            times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        Arrays.sort(times);
+        return times[TIMED_RUNS / 2];
+    }
+
+    /**
+     * A gradient frame laid out like most camera HALs deliver YUV_420_888: an interleaved VU
+     * buffer shared by the U and V planes, which end right after their last sample.
+     */
+    private static YuvFrame synthetic_frame(int width, int height) {
+        byte[] y = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                y[row * width + col] = (byte) (row + col);
+            }
+        }
+        byte[] vu = new byte[width * (height / 2)];
+        for (int i = 0; i < vu.length; i++) vu[i] = (byte) (i * 7);
+        byte[] v = Arrays.copyOf(vu, vu.length - 1);
+        byte[] u = Arrays.copyOfRange(vu, 1, vu.length);
+        return new YuvFrame(width, height, y, u, v, width, width, 2);
+    }
+}
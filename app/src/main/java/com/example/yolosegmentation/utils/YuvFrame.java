@@ -0,0 +1,64 @@
+package com.example.yolosegmentation.utils;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420_888 frame copied out of a camera {@link Image}: the three planes as they are laid out
+ * by the camera, with their strides, so converters read them directly instead of assuming NV21.
+ * Chroma planes are subsampled by 2 in both directions, {@code uv_pixel_stride} is 1 for planar
+ * layouts and 2 when U and V are interleaved.
+ */
+public class YuvFrame {
+    public final int width;
+    public final int height;
+    public final byte[] y;
+    public final byte[] u;
+    public final byte[] v;
+    public final int y_row_stride;
+    public final int uv_row_stride;
+    public final int uv_pixel_stride;
+
+    public YuvFrame(int width, int height, byte[] y, byte[] u, byte[] v,
+                    int y_row_stride, int uv_row_stride, int uv_pixel_stride) {
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+        this.y_row_stride = y_row_stride;
+        this.uv_row_stride = uv_row_stride;
+        this.uv_pixel_stride = uv_pixel_stride;
+    }
+
+    /**
+     * Copies the planes of a YUV_420_888 image, the image can be closed afterwards.
+     */
+    public static YuvFrame copy_of(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        return new YuvFrame(image.getWidth(), image.getHeight(),
+                copy_of(planes[0].getBuffer()), copy_of(planes[1].getBuffer()), copy_of(planes[2].getBuffer()),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride());
+    }
+
+    private static byte[] copy_of(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * True when the V plane is the start of an interleaved VU (NV21) buffer, i.e. the byte after
+     * each V sample is the U sample. Camera HALs report pixel stride 2 for that layout, the first
+     * samples are compared to be sure.
+     */
+    public boolean isNv21() {
+        if (uv_pixel_stride != 2) return false;
+        int samples = Math.min(16, Math.min(u.length, v.length - 1) / 2);
+        for (int i = 0; i < samples; i++) {
+            if (v[2 * i + 1] != u[2 * i]) return false;
+        }
+        return true;
+    }
+}
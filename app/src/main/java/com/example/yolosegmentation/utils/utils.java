@@ -97,11 +97,11 @@ public class utils {
 
             Mat new_image = new Mat(mat.height(), mat.width(), CvType.CV_8UC1, new Scalar(255));
             for (Rect box : rects) {
-                try{
-                    //Todo: Still there are error to fix when image have black border ie. images, stains
-                    //this errors are produced by findRects function, also text doesnt working when
-                    // images has wave text
-                    Mat crop = mat.submat(box);
+                //Todo: Still there are error to fix when image have black border ie. images, stains
+                //this errors are produced by findRects function, also text doesnt working when
+                // images has wave text
+                try (MatScope scope = new MatScope()) {
+                    Mat crop = scope.track(mat.submat(box));
                     Core.normalize(crop, crop, 0, 255, Core.NORM_MINMAX);
                     Imgproc.threshold(crop, crop, 0, 255, Imgproc.THRESH_BINARY + Imgproc.THRESH_OTSU);
                     Scalar meanScalar = Core.mean(crop);
@@ -109,7 +109,7 @@ public class utils {
                     if (meanValue<100){
                         continue;
                     }
-                    Mat roi = new_image.submat(new Rect(box.x, box.y, box.width, box.height));
+                    Mat roi = scope.track(new_image.submat(new Rect(box.x, box.y, box.width, box.height)));
                     Core.bitwise_and(crop,roi,roi);
                 }catch (Exception e){
                     System.err.println("Warning, vission text error filter");
@@ -208,13 +208,23 @@ public class utils {
         }
         return mergedBoxes;
     }
+
+    private static final ScratchMat FIND_RECTS_EDGES = new ScratchMat();
+    private static final ScratchMat FIND_RECTS_HIERARCHY = new ScratchMat();
+
     public static List<Rect> findRects(Mat image){
-        Mat thresh = new Mat();
-        //find countours in gray image
-        Imgproc.Canny(image, thresh, 50, 150, 3, false);
-        List<MatOfPoint> contours = new ArrayList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(thresh, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+        try (MatScope scope = new MatScope()) {
+            //edges and hierarchy keep their native buffers between calls
+            Mat thresh = FIND_RECTS_EDGES.get();
+            //find countours in gray image
+            Imgproc.Canny(image, thresh, 50, 150, 3, false);
+            List<MatOfPoint> contours = scope.list();
+            Imgproc.findContours(thresh, contours, FIND_RECTS_HIERARCHY.get(), Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+            return filter_rects(image, contours);
+        }
+    }
+
+    private static List<Rect> filter_rects(Mat image, List<MatOfPoint> contours){
         List<Rect> filteredContours = new ArrayList<>();
         double height = 0;
         for (int i = 0; i < contours.size(); i++) {
@@ -255,11 +265,11 @@ public class utils {
 
     //input:binary matrix
     public static double computeSkewAngle(Mat image) {
+        // Apply Canny edge detection to find the edges in the image
+        Imgproc.Canny(image, image, 50, 150, 3);
+        // Apply the Hough transform to find the lines in the image
+        Mat lines = new Mat();
         try {
-            // Apply Canny edge detection to find the edges in the image
-            Imgproc.Canny(image, image, 50, 150, 3);
-            // Apply the Hough transform to find the lines in the image
-            Mat lines = new Mat();
             Imgproc.HoughLinesP(image, lines, 1, Math.PI / 180, 100, 100, 10);
 
             // Compute the average angle of the lines
@@ -286,8 +296,8 @@ public class utils {
             }
             // Convert the angle from radians to degrees and return it
             return angle;
-        } catch (Exception e) {
-            throw e;
+        } finally {
+            lines.release();
         }
     }
 
@@ -302,6 +312,7 @@ public class utils {
             float std) throws Exception {
         try {
 //            utils.getScreenshotBmp(bitmap, "antes");
+            long start = StageTimer.getInstance().start(StageTimer.Stage.PREPROCESS);
             TensorImage tensorImage;
             if (src_width > input_width || src_height > input_height) {
                 tensorImage= FeedInputTensorHelper.getBytebufferFromBitmap(bitmap, input_width, input_height, mean, std, "downsize");
@@ -309,37 +320,28 @@ public class utils {
                 tensorImage= FeedInputTensorHelper.getBytebufferFromBitmap(bitmap, input_width, input_height, mean, std, "upsize");
             }
 //            utils.getScreenshotBmp(tensorImage.getBitmap(), "despues");
+            StageTimer.getInstance().stop(StageTimer.Stage.PREPROCESS, start);
             return tensorImage.getBuffer();
         }catch (Exception e){
             throw e;
 
-        }finally {
-            assert bitmap != null;
-            if(!bitmap.isRecycled()){
-                bitmap.recycle();
-            }
         }
     }
-    public static Bitmap feedInputToBitmap(Context context,
-                                           List<byte[]> bytesList,
-                                           int imageHeight,
-                                           int imageWidth,
-                                           int rotation) throws Exception {
-
-        int Yb = bytesList.get(0).length;
-        int Ub = bytesList.get(1).length ;
-        int Vb = bytesList.get(2).length ;
-        // Copy YUV data to plane byte
-        byte[] data = new byte[Yb+Ub+Vb];
-        System.arraycopy(bytesList.get(0), 0, data, 0, Yb);
-        System.arraycopy(bytesList.get(2), 0, data, Yb, Ub);
-        System.arraycopy(bytesList.get(1), 0, data, Yb+Ub, Vb);
 
-        Bitmap bitmapRaw = RenderScriptHelper.getBitmapFromNV21(context,data, imageWidth, imageHeight);
-//        utils.getScreenshotBmp(bitmapRaw, "NV21");
-        Matrix matrix = new Matrix();
-        matrix.postRotate(rotation);
-        bitmapRaw = Bitmap.createBitmap(bitmapRaw, 0, 0, bitmapRaw.getWidth(), bitmapRaw.getHeight(), matrix, true);
-        return bitmapRaw;
+    /**
+     * Camera frame to a bitmap in sensor orientation from {@link BitmapPool}, the caller releases
+     * it. Pass the rotation on to the sampler instead of rotating the pixels.
+     */
+    public static Bitmap yuv_to_bitmap(YuvConverter converter, YuvFrame frame) {
+        long start = StageTimer.getInstance().start(StageTimer.Stage.YUV);
+        Bitmap bitmap = BitmapPool.getInstance().acquire(frame.width, frame.height, Bitmap.Config.ARGB_8888);
+        try {
+            converter.convert(frame, bitmap);
+        } catch (RuntimeException e) {
+            BitmapPool.getInstance().release(bitmap);
+            throw e;
+        }
+        StageTimer.getInstance().stop(StageTimer.Stage.YUV, start);
+        return bitmap;
     }
 }
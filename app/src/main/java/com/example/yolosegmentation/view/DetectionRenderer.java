@@ -0,0 +1,304 @@
+package com.example.yolosegmentation.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+
+import com.example.yolosegmentation.models.PostProcessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Draws detections without allocating per frame. Polygons are turned into {@link Path}s once per
+ * result set and mapped to the view with a single {@link Matrix}, which is only recomputed when the
+ * view or preview size changes. Label strings and their widths are cached per tag and rounded
+ * confidence, so redraws of the same results only issue draw calls. Not thread safe, draw and
+ * update from the thread that owns the canvas (the UI thread or an overlay render thread).
+ *
+ * In {@link Mode#LABEL_MAP} the masks come from the {@link PostProcessing.LabelMap} of the
+ * results instead: it is colorized through a per-instance color table into one reused bitmap at
+ * prototype resolution and drawn with a single scaled drawBitmap, whatever the number of
+ * instances, holes and disjoint parts included. Results without a label map are drawn as polygons.
+ */
+public class DetectionRenderer {
+    public enum Mode {
+        POLYGONS,
+        LABEL_MAP
+    }
+
+    private static class Label {
+        final String[] text = new String[101];
+        final float[] width = new float[101];
+    }
+
+    private static class Entry {
+        final Path source_path = new Path();
+        final Path view_path = new Path();
+        boolean has_path;
+        boolean has_box;
+        //index in the label map, 0 when not in one
+        int instance;
+        float left, top;
+        int percent;
+        Label label;
+        int text_color;
+        int fill_color;
+    }
+
+    private final Paint paint = new Paint();
+    private final Paint textPaint = new Paint();
+    private final Matrix transform = new Matrix();
+    private final Rect background_bounds = new Rect();
+    private final Matrix mask_transform = new Matrix();
+    private final Paint mask_paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    //instance to color, index 0 is the transparent background
+    private final int[] lut = new int[PostProcessing.MAX_LABELS + 1];
+    private int[] mask_pixels = new int[0];
+    private Bitmap mask_bitmap;
+    private PostProcessing.LabelMap label_map;
+    //read by the detection thread to decide whether label maps are needed
+    private volatile Mode mode = Mode.POLYGONS;
+    private final Map<String, Label> labels = new HashMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private int entry_count = 0;
+
+    private List<Map<String, Object>> detections;
+    private boolean detections_dirty = false;
+    private boolean transform_dirty = true;
+    private int view_width, view_height;
+    private int preview_width, preview_height;
+    private float factor_x, factor_y;
+
+    public DetectionRenderer() {
+        paint.setColor(0x4DFF0000); // Red color
+        paint.setStyle(Paint.Style.FILL_AND_STROKE);
+        paint.setStrokeWidth(5f);
+
+        textPaint.setColor(0xFFFFFFFF); // White color
+        textPaint.setTextSize(40f);
+        textPaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Paths are rebuilt on the next draw, not here, so result sets replaced before being drawn
+     * cost nothing.
+     */
+    public void setDetections(List<Map<String, Object>> detections) {
+        this.detections = detections;
+        this.detections_dirty = true;
+    }
+
+    public void setMode(Mode mode) {
+        if (mode == this.mode) return;
+        this.mode = mode;
+        detections_dirty = true;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setPreviewSize(int width, int height) {
+        if (width == preview_width && height == preview_height) return;
+        preview_width = width;
+        preview_height = height;
+        transform_dirty = true;
+    }
+
+    public void setViewSize(int width, int height) {
+        if (width == view_width && height == view_height) return;
+        view_width = width;
+        view_height = height;
+        transform_dirty = true;
+    }
+
+    public void drawBackground(Canvas canvas, Bitmap bitmap) {
+        background_bounds.set(0, 0, view_width, view_height);
+        canvas.drawBitmap(bitmap, null, background_bounds, null);
+    }
+
+    public void draw(Canvas canvas) {
+        if (preview_width <= 0 || preview_height <= 0) return;
+        boolean rebuilt = false;
+        if (detections_dirty) {
+            prepare(detections);
+            detections_dirty = false;
+            rebuilt = true;
+        }
+        if (transform_dirty) {
+            update_transform();
+            transform_dirty = false;
+            rebuilt = true;
+        }
+        if (label_map != null) {
+            if (rebuilt) {
+                //map pixels -> source pixels -> view, like the boxes (the polygon offsets don't apply)
+                mask_transform.setScale(label_map.width / label_map.mask_width,
+                        label_map.height / label_map.mask_height);
+                mask_transform.postTranslate(label_map.x, label_map.y);
+                mask_transform.postScale(factor_x, factor_y);
+            }
+            canvas.drawBitmap(mask_bitmap, mask_transform, mask_paint);
+        }
+        for (int i = 0; i < entry_count; i++) {
+            Entry entry = entries.get(i);
+            textPaint.setColor(entry.text_color);
+            paint.setColor(entry.fill_color);
+            if (entry.has_path && entry.instance == 0) {
+                //strokes keep their width, so the path is mapped instead of scaling the canvas
+                if (rebuilt) entry.source_path.transform(transform, entry.view_path);
+                canvas.drawPath(entry.view_path, paint);
+            }
+            if (entry.has_box) {
+                float left = entry.left * factor_x;
+                float top = entry.top * factor_y;
+                Label label = entry.label;
+                int percent = entry.percent;
+                //keep the label inside the view
+                float x = Math.max(0f, Math.min(left, view_width - label.width[percent]));
+                canvas.drawText(label.text[percent], x, top - 10, textPaint);
+            }
+        }
+    }
+
+    private void update_transform() {
+        // Scale factors to adapt the preview size to the view size
+        double factorX = (double) view_width / preview_width;
+        double imgRatio = (double) preview_width / preview_height;
+        double newWidth = preview_width * factorX;
+        double newHeight = newWidth / imgRatio;
+        double factorY = (double) (view_height / preview_height);
+        double pady = (view_height - newHeight) / 2;
+        factor_x = (float) factorX;
+        factor_y = (float) factorY;
+        //polygon points go to (x * factorX + pady, y * factorY + 2 * pady)
+        transform.setScale(factor_x, factor_y);
+        transform.postTranslate((float) pady, (float) (pady + pady));
+    }
+
+    private void prepare(List<Map<String, Object>> detections) {
+        entry_count = 0;
+        label_map = null;
+        if (detections == null) return;
+        PostProcessing.LabelMap shared_map = mode == Mode.LABEL_MAP ? shared_label_map(detections) : null;
+        for (Map<String, Object> detection : detections) {
+            if (entry_count == entries.size()) entries.add(new Entry());
+            Entry entry = entries.get(entry_count++);
+            String tag = (String) detection.get("tag");
+            set_colors(entry, tag);
+            Object instance = shared_map == null ? null : detection.get("instance");
+            entry.instance = instance == null ? 0 : (Integer) instance;
+
+            // Handle polygons
+            List<Map<String, Double>> polygons = (List<Map<String, Double>>) detection.get("polygons");
+            entry.source_path.reset();
+            entry.has_path = polygons != null && !polygons.isEmpty();
+            if (entry.has_path) {
+                boolean firstPoint = true;
+                for (Map<String, Double> point : polygons) {
+                    float x = point.get("x").floatValue();
+                    float y = point.get("y").floatValue();
+                    if (firstPoint) {
+                        entry.source_path.moveTo(x, y);
+                        firstPoint = false;
+                    } else {
+                        entry.source_path.lineTo(x, y);
+                    }
+                }
+                entry.source_path.close();
+            }
+
+            // Handle boxes
+            float[] box = (float[]) detection.get("box");
+            entry.has_box = box != null && box.length == 5;
+            if (entry.has_box) {
+                entry.left = box[0];
+                entry.top = box[1];
+                entry.percent = Math.max(0, Math.min(100, Math.round(box[4] * 100)));
+                entry.label = label(tag, entry.percent);
+            }
+        }
+        if (shared_map != null) colorize(shared_map);
+    }
+
+    /**
+     * The label map all detections point to, null when some have none or they come from
+     * different maps (e.g. stitched tiles).
+     */
+    private static PostProcessing.LabelMap shared_label_map(List<Map<String, Object>> detections) {
+        PostProcessing.LabelMap shared = null;
+        for (Map<String, Object> detection : detections) {
+            Object label_map = detection.get("label_map");
+            if (label_map == null || (shared != null && shared != label_map)) return null;
+            shared = (PostProcessing.LabelMap) label_map;
+        }
+        return shared;
+    }
+
+    private void colorize(PostProcessing.LabelMap label_map) {
+        int width = label_map.mask_width;
+        int height = label_map.mask_height;
+        if (mask_bitmap == null || mask_bitmap.getWidth() != width || mask_bitmap.getHeight() != height) {
+            if (mask_bitmap != null) mask_bitmap.recycle();
+            mask_bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mask_pixels = new int[width * height];
+        }
+        Arrays.fill(lut, 0);
+        for (int i = 0; i < entry_count; i++) {
+            Entry entry = entries.get(i);
+            //the polygon fill colors are nearly transparent, masks get a readable alpha
+            if (entry.instance > 0) lut[entry.instance] = (entry.fill_color & 0x00FFFFFF) | 0x80000000;
+        }
+        byte[] labels = label_map.labels;
+        for (int i = 0; i < labels.length; i++) {
+            mask_pixels[i] = lut[labels[i] & 0xFF];
+        }
+        mask_bitmap.setPixels(mask_pixels, 0, width, 0, 0, width, height);
+        this.label_map = label_map;
+    }
+
+    /**
+     * Frees the mask bitmap, it is recreated on the next label map.
+     */
+    public void release() {
+        if (mask_bitmap != null) mask_bitmap.recycle();
+        mask_bitmap = null;
+        label_map = null;
+        detections_dirty = true;
+    }
+
+    private Label label(String tag, int percent) {
+        Label label = labels.get(tag);
+        if (label == null) {
+            label = new Label();
+            labels.put(tag, label);
+        }
+        if (label.text[percent] == null) {
+            label.text[percent] = tag + " " + percent + "%";
+            label.width[percent] = textPaint.measureText(label.text[percent]);
+        }
+        return label;
+    }
+
+    private static void set_colors(Entry entry, String tag) {
+        switch (tag == null ? "" : tag) {
+            case "mode_disconnected":
+            case "power_disconnected":
+            case "usb_disconnected":
+                entry.text_color = 0xFFFF0000;
+                entry.fill_color = 0x80FF0000;
+                break;
+            default:
+                entry.text_color = 0xFF00FF00;
+                entry.fill_color = 0xFF00FF0;
+                break;
+        }
+    }
+}
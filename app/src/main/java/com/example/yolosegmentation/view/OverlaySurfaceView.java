@@ -0,0 +1,199 @@
+package com.example.yolosegmentation.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.example.yolosegmentation.utils.PipelineStats;
+import com.example.yolosegmentation.utils.ResultSnapshot;
+import com.example.yolosegmentation.utils.StageTimer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transparent overlay drawn by its own render thread instead of the UI thread. Results are
+ * double buffered: the detector publishes an immutable {@link ResultSnapshot} into the back slot
+ * (an {@link AtomicReference}, the latest one wins) while the render thread draws the front one,
+ * and the back one becomes the front on the next Choreographer vsync of the render thread. Several
+ * results arriving within a frame cost one draw and a slow UI thread doesn't hold the overlay
+ * back. Drawing goes through the same {@link DetectionRenderer} as {@link PolygonView}, which is
+ * only ever touched by the render thread.
+ *
+ * The overlay only draws when something changed, between results the thread sleeps.
+ */
+public class OverlaySurfaceView extends SurfaceView implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+    private static final String TAG = "OverlaySurfaceView";
+
+    private final DetectionRenderer renderer = new DetectionRenderer();
+    private final AtomicReference<ResultSnapshot> pending = new AtomicReference<>();
+    //a frame callback is posted and hasn't run yet
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable schedule = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(OverlaySurfaceView.this);
+        }
+    };
+    private HandlerThread render_thread;
+    private volatile Handler render_handler;
+    private volatile int preview_width;
+    private volatile int preview_height;
+    private volatile int surface_width;
+    private volatile int surface_height;
+    private volatile DetectionRenderer.Mode mode = DetectionRenderer.Mode.POLYGONS;
+    //the surface changed or the settings did, redraw even without a new result
+    private volatile boolean redraw = false;
+
+    public OverlaySurfaceView(Context context) {
+        super(context);
+        init();
+    }
+
+    public OverlaySurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public OverlaySurfaceView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        //above the camera preview surface, below the regular views of the window
+        setZOrderMediaOverlay(true);
+        getHolder().setFormat(PixelFormat.TRANSPARENT);
+        getHolder().addCallback(this);
+    }
+
+    public void setDetections(List<Map<String, Object>> detections) {
+        setDetections(detections, 0);
+    }
+
+    /**
+     * Can be called from any thread, a result not drawn yet is replaced.
+     *
+     * @param sensor_timestamp_ns CameraX timestamp of the frame the detections come from, reported
+     *                            to {@link PipelineStats} once drawn
+     */
+    public void setDetections(List<Map<String, Object>> detections, long sensor_timestamp_ns) {
+        publish(new ResultSnapshot(detections, sensor_timestamp_ns, preview_width, preview_height));
+    }
+
+    /**
+     * Can be called from any thread. The snapshot's frame size, when set, replaces the preview
+     * size so the result is always mapped with the size of its own frame.
+     */
+    public void publish(ResultSnapshot snapshot) {
+        pending.set(snapshot);
+        request_frame();
+    }
+
+    public void setPreviewSize(int width, int height) {
+        if (width == preview_width && height == preview_height) return;
+        preview_width = width;
+        preview_height = height;
+        redraw = true;
+        request_frame();
+    }
+
+    public void setRenderMode(DetectionRenderer.Mode mode) {
+        this.mode = mode;
+        redraw = true;
+        request_frame();
+    }
+
+    public DetectionRenderer.Mode getRenderMode() {
+        return mode;
+    }
+
+    public void toggleRenderMode() {
+        setRenderMode(mode == DetectionRenderer.Mode.POLYGONS
+                ? DetectionRenderer.Mode.LABEL_MAP : DetectionRenderer.Mode.POLYGONS);
+    }
+
+    private void request_frame() {
+        Handler handler = render_handler;
+        if (handler != null && scheduled.compareAndSet(false, true)) {
+            handler.post(schedule);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        render_thread = new HandlerThread("overlay-render");
+        render_thread.start();
+        render_handler = new Handler(render_thread.getLooper());
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        surface_width = width;
+        surface_height = height;
+        redraw = true;
+        request_frame();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        //the surface must not be drawn once this returns, wait for the render thread to finish
+        render_handler = null;
+        render_thread.quitSafely();
+        try {
+            render_thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        render_thread = null;
+        renderer.release();
+        scheduled.set(false);
+        //picked up again by the next surface
+        redraw = true;
+    }
+
+    @Override
+    public void doFrame(long frame_time_ns) {
+        scheduled.set(false);
+        ResultSnapshot frame = pending.getAndSet(null);
+        if (frame == null && !redraw) return;
+        redraw = false;
+
+        long start = StageTimer.getInstance().start(StageTimer.Stage.RENDER);
+        renderer.setMode(mode);
+        if (frame != null && frame.frame_width > 0 && frame.frame_height > 0) {
+            preview_width = frame.frame_width;
+            preview_height = frame.frame_height;
+        }
+        renderer.setPreviewSize(preview_width, preview_height);
+        renderer.setViewSize(surface_width, surface_height);
+        if (frame != null) renderer.setDetections(frame.detections);
+        Canvas canvas = null;
+        try {
+            canvas = getHolder().lockHardwareCanvas();
+            if (canvas == null) return;
+            canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            renderer.draw(canvas);
+        } catch (IllegalStateException e) {
+            //the surface went away between the callback and the lock
+            Log.w(TAG, "unable to draw overlay: " + e.getMessage());
+        } finally {
+            if (canvas != null) getHolder().unlockCanvasAndPost(canvas);
+            //also when there was no canvas to draw on, every start is paired with a stop
+            StageTimer.getInstance().stop(StageTimer.Stage.RENDER, start);
+        }
+        if (canvas != null && frame != null && frame.sensor_timestamp_ns != 0) {
+            PipelineStats.getInstance().frame_rendered(frame.sensor_timestamp_ns);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.yolosegmentation.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.Nullable;
+
+import com.example.yolosegmentation.utils.AndroidAllocationCounter;
+import com.example.yolosegmentation.utils.BitmapPool;
+import com.example.yolosegmentation.utils.LatencyHistogram;
+import com.example.yolosegmentation.utils.PipelineStats;
+import com.example.yolosegmentation.utils.StageTimer;
+import com.example.yolosegmentation.utils.YuvConverterSelector;
+
+/**
+ * On-screen p50/p90/p99 of every pipeline stage, followed by the {@link PipelineStats} frame
+ * counters, end to end ages, bitmap pool and YUV converter benchmark, refreshed twice per
+ * second. Stage timing and allocation accounting (mean/max KB per frame) are only turned on while
+ * the HUD is visible. Text goes through a reused builder and char buffer so the overlay doesn't
+ * add garbage of its own to what it measures.
+ */
+public class StageHudView extends View {
+    private static final long REFRESH_MS = 500;
+    private static final StageTimer.Stage[] STAGES = StageTimer.Stage.values();
+
+    private final Paint textPaint = new Paint();
+    private final Paint backgroundPaint = new Paint();
+    private final StringBuilder line = new StringBuilder(64);
+    private char[] chars = new char[64];
+    //allocation counting slows the runtime down, it only runs while the HUD is shown
+    private AndroidAllocationCounter allocation_counter;
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+            postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    public StageHudView(Context context) {
+        super(context);
+        init();
+    }
+
+    public StageHudView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public StageHudView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        textPaint.setColor(0xFFFFFFFF);
+        textPaint.setTextSize(30f);
+        textPaint.setTypeface(Typeface.MONOSPACE);
+        textPaint.setAntiAlias(true);
+        backgroundPaint.setColor(0x99000000);
+    }
+
+    /**
+     * Shows or hides the HUD, stage timing follows it.
+     */
+    public void setShown(boolean shown) {
+        setVisibility(shown ? VISIBLE : GONE);
+        StageTimer timer = StageTimer.getInstance();
+        timer.setEnabled(shown);
+        if (shown) {
+            timer.reset();
+            if (allocation_counter == null) {
+                allocation_counter = AndroidAllocationCounter.start();
+                timer.setAllocationCounter(allocation_counter);
+            }
+        } else if (allocation_counter != null) {
+            timer.setAllocationCounter(null);
+            allocation_counter.stop();
+            allocation_counter = null;
+        }
+    }
+
+    public void toggle() {
+        setShown(getVisibility() != VISIBLE);
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        removeCallbacks(refresh);
+        if (isShown()) post(refresh);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (getVisibility() == VISIBLE) setShown(false);
+        removeCallbacks(refresh);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        StageTimer timer = StageTimer.getInstance();
+        float line_height = textPaint.getTextSize() * 1.2f;
+        float y = line_height;
+        //header, stages, frame counters, the two end to end ages, the bitmap pool and the yuv converter
+        canvas.drawRect(0, 0, getWidth(), line_height * (STAGES.length + 6) + line_height / 2, backgroundPaint);
+
+        line.setLength(0);
+        line.append("stage p50/p90/p99 alloc");
+        draw_line(canvas, y);
+        for (StageTimer.Stage stage : STAGES) {
+            y += line_height;
+            LatencyHistogram histogram = timer.getHistogram(stage);
+            line.setLength(0);
+            line.append(stage.label).append(' ');
+            if (histogram.getCount() == 0) {
+                line.append('-');
+            } else {
+                histogram.appendSummary(line);
+                timer.appendAllocations(line, stage);
+            }
+            draw_line(canvas, y);
+        }
+
+        PipelineStats stats = PipelineStats.getInstance();
+        y += line_height;
+        line.setLength(0);
+        stats.appendCounters(line);
+        draw_line(canvas, y);
+        y += line_height;
+        line.setLength(0);
+        stats.getResultLatency().appendSummary(line.append("age at result "));
+        draw_line(canvas, y);
+        y += line_height;
+        line.setLength(0);
+        stats.getDisplayLatency().appendSummary(line.append("age at draw "));
+        draw_line(canvas, y);
+        y += line_height;
+        line.setLength(0);
+        BitmapPool.getInstance().appendStats(line);
+        draw_line(canvas, y);
+        y += line_height;
+        line.setLength(0);
+        line.append(YuvConverterSelector.getResults());
+        draw_line(canvas, y);
+    }
+
+    private void draw_line(Canvas canvas, float y) {
+        if (chars.length < line.length()) chars = new char[line.length()];
+        line.getChars(0, line.length(), chars, 0);
+        canvas.drawText(chars, 0, line.length(), 10f, y, textPaint);
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.yolosegmentation.view;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes values from any thread to the thread that created it (normally the UI thread), at
+ * most once per vsync: values published within a frame are coalesced and only the latest one is
+ * delivered on the next Choreographer frame. Publishing allocates nothing and posts a frame
+ * callback only when none is pending.
+ */
+public class VsyncPublisher<T> implements Choreographer.FrameCallback {
+    public interface Listener<T> {
+        void onPublished(T value);
+    }
+
+    private final AtomicReference<T> latest = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Choreographer choreographer;
+    private final Listener<T> listener;
+
+    /**
+     * Must be created on a thread with a Looper, the listener runs there.
+     */
+    public VsyncPublisher(Listener<T> listener) {
+        this.choreographer = Choreographer.getInstance();
+        this.listener = listener;
+    }
+
+    public void publish(T value) {
+        latest.set(value);
+        if (scheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drops the value waiting for the next frame, if any.
+     */
+    public void cancel() {
+        choreographer.removeFrameCallback(this);
+        latest.set(null);
+        scheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(long frame_time_ns) {
+        scheduled.set(false);
+        T value = latest.getAndSet(null);
+        if (value != null) listener.onPublished(value);
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.yolosegmentation.models;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncDetectorTest {
+    private static final long TIMEOUT_S = 5;
+
+    //the jobs never touch the model, the scheduling is what is under test
+    private final AsyncDetector detector = new AsyncDetector(null);
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void close() {
+        release.countDown();
+        detector.close();
+    }
+
+    //occupies the detector thread until the test lets it go
+    private CompletableFuture<String> submit_blocking(String name) throws InterruptedException {
+        CompletableFuture<String> future = detector.submit(model -> {
+            started.countDown();
+            release.await();
+            ran.add(name);
+            return name;
+        });
+        assertTrue(started.await(TIMEOUT_S, TimeUnit.SECONDS));
+        return future;
+    }
+
+    private CompletableFuture<String> submit(String name) {
+        return detector.submit(model -> {
+            ran.add(name);
+            return name;
+        });
+    }
+
+    @Test
+    public void submit_supersedesTheOldestQueuedJob() throws Exception {
+        assertEquals(2, detector.getMaxInFlight());
+        CompletableFuture<String> running = submit_blocking("running");
+        CompletableFuture<String> stale = submit("stale");
+        CompletableFuture<String> latest = submit("latest");
+
+        assertTrue(stale.isCancelled());
+        assertFalse(running.isDone());
+        assertEquals(1, detector.getSkipped());
+
+        release.countDown();
+        assertEquals("running", running.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals("latest", latest.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("running", "latest"), ran);
+    }
+
+    @Test
+    public void submit_keepsTwoJobsInFlight() throws Exception {
+        CompletableFuture<String> running = submit_blocking("running");
+        CompletableFuture<String> queued = submit("queued");
+        //one running and one queued fit the default limit
+        assertFalse(queued.isDone());
+        assertEquals(0, detector.getSkipped());
+
+        release.countDown();
+        assertEquals("queued", queued.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals("running", running.get(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void submit_skipsTheNewJobWhenNothingIsQueued() throws Exception {
+        detector.setMaxInFlight(1);
+        CompletableFuture<String> running = submit_blocking("running");
+        CompletableFuture<String> skipped = submit("skipped");
+
+        assertTrue(skipped.isCancelled());
+        assertEquals(1, detector.getSkipped());
+        release.countDown();
+        assertEquals("running", running.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("running"), ran);
+    }
+
+    @Test
+    public void submit_doesntCountJobsCancelledByTheirCaller() throws Exception {
+        CompletableFuture<String> running = submit_blocking("running");
+        submit("abandoned").cancel(false);
+        CompletableFuture<String> next = submit("next");
+
+        //the abandoned job freed its slot, nothing was superseded
+        assertFalse(next.isCancelled());
+        assertEquals(0, detector.getSkipped());
+        release.countDown();
+        assertEquals("next", next.get(TIMEOUT_S, TimeUnit.SECONDS));
+        running.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("running", "next"), ran);
+    }
+
+    @Test
+    public void submit_neverSupersedesJobsThatMustRun() throws Exception {
+        CompletableFuture<String> running = submit_blocking("running");
+        CompletableFuture<String> cleanup = detector.submit(model -> {
+            ran.add("cleanup");
+            return "cleanup";
+        }, false);
+        //the cleanup job holds no slot, the frames supersede each other around it
+        CompletableFuture<String> first = submit("first");
+        CompletableFuture<String> second = submit("second");
+
+        assertFalse(cleanup.isDone());
+        assertTrue(first.isCancelled());
+        assertEquals(1, detector.getSkipped());
+        release.countDown();
+        assertEquals("second", second.get(TIMEOUT_S, TimeUnit.SECONDS));
+        running.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("running", "cleanup", "second"), ran);
+    }
+
+    @Test
+    public void submit_queuesJobsThatMustRunAtTheLimit() throws Exception {
+        detector.setMaxInFlight(1);
+        CompletableFuture<String> running = submit_blocking("running");
+        CompletableFuture<String> cleanup = detector.submit(model -> {
+            ran.add("cleanup");
+            return "cleanup";
+        }, false);
+
+        assertFalse(cleanup.isCancelled());
+        assertEquals(0, detector.getSkipped());
+        release.countDown();
+        assertEquals("cleanup", cleanup.get(TIMEOUT_S, TimeUnit.SECONDS));
+        running.get(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void setMaxInFlight_neverGoesBelowOne() {
+        detector.setMaxInFlight(0);
+        assertEquals(1, detector.getMaxInFlight());
+    }
+
+    @Test
+    public void submit_passesJobFailuresToTheFuture() throws Exception {
+        CompletableFuture<Object> failed = detector.submit(model -> {
+            throw new IllegalStateException("no model");
+        });
+        try {
+            failed.get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        //the thread keeps serving jobs
+        assertEquals("after", submit("after").get(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void close_cancelsQueuedJobsAndLaterSubmits() throws Exception {
+        CompletableFuture<String> running = submit_blocking("running");
+        CompletableFuture<String> queued = submit("queued");
+        new Thread(() -> {
+            //close waits for the running job, let it finish meanwhile
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            release.countDown();
+        }).start();
+        detector.close();
+
+        assertTrue(queued.isCancelled());
+        assertEquals("running", running.get(TIMEOUT_S, TimeUnit.SECONDS));
+        try {
+            submit("late").get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException expected) {
+        }
+        assertEquals(Collections.singletonList("running"), ran);
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.yolosegmentation.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PostProcessingTest {
+    //x1, y1, x2, y2, score, class as decode_seg_boxes leaves them
+    private static float[] box(float x1, float y1, float x2, float y2, float score, int label) {
+        return new float[]{x1, y1, x2, y2, score, label};
+    }
+
+    @Test
+    public void nms_dropsBoxesOverlappingAHigherScore() {
+        float[] best = box(0, 0, 10, 10, 0.9f, 0);
+        //IoU 81 / 119 with the best box
+        float[] shifted = box(1, 1, 11, 11, 0.8f, 0);
+        float[] apart = box(20, 20, 30, 30, 0.7f, 0);
+        List<float[]> boxes = Arrays.asList(best, shifted, apart);
+
+        List<float[]> kept = PostProcessing.nms(boxes, 0.5f);
+        assertEquals(2, kept.size());
+        assertSame(best, kept.get(0));
+        assertSame(apart, kept.get(1));
+        //the input list is left as it was
+        assertEquals(3, boxes.size());
+    }
+
+    @Test
+    public void nms_keepsOverlapsUpToTheThreshold() {
+        //half of each box overlaps, IoU 50 / 150
+        List<float[]> boxes = Arrays.asList(box(0, 0, 10, 10, 0.9f, 0), box(5, 0, 15, 10, 0.8f, 0));
+        assertEquals(2, PostProcessing.nms(boxes, 0.4f).size());
+        assertEquals(1, PostProcessing.nms(boxes, 0.3f).size());
+    }
+
+    @Test
+    public void nms_ignoresClasses() {
+        List<float[]> boxes = Arrays.asList(box(0, 0, 10, 10, 0.9f, 0), box(0, 0, 10, 10, 0.6f, 3));
+        List<float[]> kept = PostProcessing.nms(boxes, 0.5f);
+        assertEquals(1, kept.size());
+        assertEquals(0f, kept.get(0)[5], 0f);
+    }
+
+    @Test
+    public void nms_suppressedBoxesDontSuppressOthers() {
+        //the middle box overlaps both, once it is gone the outer two are kept
+        float[] left = box(0, 0, 10, 10, 0.9f, 0);
+        float[] middle = box(4, 0, 14, 10, 0.8f, 0);
+        float[] right = box(8, 0, 18, 10, 0.7f, 0);
+        List<float[]> kept = PostProcessing.nms(Arrays.asList(left, middle, right), 0.4f);
+        assertEquals(2, kept.size());
+        assertSame(left, kept.get(0));
+        assertSame(right, kept.get(1));
+    }
+
+    @Test
+    public void restore_size_scalesStretchedInputs() {
+        List<float[]> boxes = new ArrayList<>();
+        boxes.add(box(64, 48, 320, 240, 0.9f, 0));
+        //a 320x120 crop resampled to a 640x480 input
+        PostProcessing.restore_size(boxes, 640, 480, 320, 120, true);
+        assertArrayEquals(new float[]{32, 12, 160, 60}, Arrays.copyOf(boxes.get(0), 4), 1e-4f);
+    }
+
+    @Test
+    public void restore_size_removesPaddingOfSmallSources() {
+        List<float[]> boxes = new ArrayList<>();
+        boxes.add(box(200, 150, 400, 300, 0.9f, 0));
+        //feedInputTensor centers a 320x240 image in the 640x480 input
+        PostProcessing.restore_size(boxes, 640, 480, 320, 240, false);
+        assertArrayEquals(new float[]{40, 30, 240, 180}, Arrays.copyOf(boxes.get(0), 4), 1e-4f);
+    }
+
+    @Test
+    public void restore_size_clampsToTheSource() {
+        List<float[]> boxes = new ArrayList<>();
+        boxes.add(box(-10, -5, 700, 500, 0.9f, 0));
+        PostProcessing.restore_size(boxes, 640, 480, 1280, 960, false);
+        assertArrayEquals(new float[]{0, 0, 1280, 960}, Arrays.copyOf(boxes.get(0), 4), 0f);
+        //score and class are left alone
+        assertEquals(0.9f, boxes.get(0)[4], 0f);
+    }
+
+    //a detection with its polygon given in source pixels, stored relative to the box corner
+    private static Map<String, Object> detection(float x1, float y1, float x2, float y2, float... polygon) {
+        Map<String, Object> detection = new HashMap<>();
+        detection.put("box", new float[]{x1, y1, x2, y2, 0.9f});
+        List<Map<String, Double>> vertices = new ArrayList<>();
+        for (int i = 0; i < polygon.length; i += 2) {
+            Map<String, Double> vertex = new HashMap<>();
+            vertex.put("x", (double) (polygon[i] - x1));
+            vertex.put("y", (double) (polygon[i + 1] - y1));
+            vertices.add(vertex);
+        }
+        detection.put("polygons", vertices);
+        return detection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Double> vertex(Map<String, Object> detection, int index) {
+        return ((List<Map<String, Double>>) detection.get("polygons")).get(index);
+    }
+
+    @Test
+    public void rotate_results_turnsBoxesAndPolygonsClockwise() {
+        //a 100x50 sensor frame is 50x100 after a quarter turn, (x, y) lands on (50 - y, x)
+        Map<String, Object> detection = detection(10, 5, 30, 15, 10, 5, 30, 15, 12, 14);
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(detection);
+        PostProcessing.rotate_results(results, 90, 100, 50);
+
+        assertArrayEquals(new float[]{35, 10, 45, 30, 0.9f}, (float[]) detection.get("box"), 1e-4f);
+        //relative to the new corner (35, 10)
+        assertEquals(10, vertex(detection, 0).get("x"), 1e-4);
+        assertEquals(0, vertex(detection, 0).get("y"), 1e-4);
+        assertEquals(0, vertex(detection, 1).get("x"), 1e-4);
+        assertEquals(20, vertex(detection, 1).get("y"), 1e-4);
+        assertEquals(1, vertex(detection, 2).get("x"), 1e-4);
+        assertEquals(2, vertex(detection, 2).get("y"), 1e-4);
+    }
+
+    @Test
+    public void rotate_results_normalizesTheRotation() {
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(detection(10, 5, 30, 15));
+        PostProcessing.rotate_results(results, 720, 100, 50);
+        assertArrayEquals(new float[]{10, 5, 30, 15}, Arrays.copyOf((float[]) results.get(0).get("box"), 4), 0f);
+        //a quarter turn back is three quarters forward, (x, y) lands on (y, 100 - x)
+        PostProcessing.rotate_results(results, -90, 100, 50);
+        assertArrayEquals(new float[]{5, 70, 15, 90}, Arrays.copyOf((float[]) results.get(0).get("box"), 4), 1e-4f);
+        PostProcessing.rotate_results(results, 540, 50, 100);
+        assertArrayEquals(new float[]{35, 10, 45, 30}, Arrays.copyOf((float[]) results.get(0).get("box"), 4), 1e-4f);
+    }
+
+    @Test
+    public void rotate_results_rotatesTheSharedLabelMapOnce() {
+        PostProcessing.LabelMap map = new PostProcessing.LabelMap(3, 2, 100, 50);
+        byte[] labels = {1, 1, 0, 0, 2, 2};
+        System.arraycopy(labels, 0, map.labels, 0, labels.length);
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(detection(0, 0, 60, 25));
+        results.add(detection(60, 25, 100, 50));
+        results.get(0).put("label_map", map);
+        results.get(1).put("label_map", map);
+
+        PostProcessing.rotate_results(results, 90, 100, 50);
+        PostProcessing.LabelMap rotated = (PostProcessing.LabelMap) results.get(0).get("label_map");
+        assertSame(rotated, results.get(1).get("label_map"));
+        assertNotSame(map, rotated);
+        assertEquals(2, rotated.mask_width);
+        assertEquals(3, rotated.mask_height);
+        //1 1 0 / 0 2 2 turned clockwise
+        assertArrayEquals(new byte[]{0, 1, 2, 1, 2, 0}, rotated.labels);
+        assertArrayEquals(new float[]{0, 0, 50, 100},
+                new float[]{rotated.x, rotated.y, rotated.width, rotated.height}, 1e-4f);
+        //the original is left to its other holders
+        assertArrayEquals(labels, map.labels);
+    }
+
+    @Test
+    public void rotate_label_map_turnsItsPlacementWithTheFrame() {
+        //a map covering the right half of a 100x50 frame
+        PostProcessing.LabelMap map = new PostProcessing.LabelMap(2, 2, 50, 50);
+        map.x = 50;
+        byte[] labels = {1, 2, 3, 4};
+        System.arraycopy(labels, 0, map.labels, 0, labels.length);
+
+        PostProcessing.LabelMap half = PostProcessing.rotate_label_map(map, 180, 100, 50);
+        assertArrayEquals(new byte[]{4, 3, 2, 1}, half.labels);
+        assertArrayEquals(new float[]{0, 0, 50, 50}, new float[]{half.x, half.y, half.width, half.height}, 1e-4f);
+
+        //the bottom half of the 50x100 upright frame
+        PostProcessing.LabelMap quarter = PostProcessing.rotate_label_map(map, 90, 100, 50);
+        assertArrayEquals(new byte[]{3, 1, 4, 2}, quarter.labels);
+        assertArrayEquals(new float[]{0, 50, 50, 50},
+                new float[]{quarter.x, quarter.y, quarter.width, quarter.height}, 1e-4f);
+
+        PostProcessing.LabelMap back = PostProcessing.rotate_label_map(quarter, 270, 50, 100);
+        assertArrayEquals(labels, back.labels);
+        assertArrayEquals(new float[]{50, 0, 50, 50}, new float[]{back.x, back.y, back.width, back.height}, 1e-4f);
+    }
+
+    @Test
+    public void scale_results_scalesEachAxis() {
+        //detections on a 1/4 subsampled decode, the original is 4x as wide and tall
+        Map<String, Object> detection = detection(10, 20, 30, 40, 10, 20, 30, 40);
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(detection);
+        PostProcessing.scale_results(results, 4f, 3.5f);
+
+        assertArrayEquals(new float[]{40, 70, 120, 140, 0.9f}, (float[]) detection.get("box"), 1e-4f);
+        assertEquals(0, vertex(detection, 0).get("x"), 1e-4);
+        assertEquals(0, vertex(detection, 0).get("y"), 1e-4);
+        assertEquals(80, vertex(detection, 1).get("x"), 1e-4);
+        assertEquals(70, vertex(detection, 1).get("y"), 1e-4);
+    }
+
+    @Test
+    public void scale_results_movesTheSharedLabelMapOnce() {
+        PostProcessing.LabelMap map = new PostProcessing.LabelMap(4, 4, 50, 40);
+        map.x = 5;
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(detection(5, 0, 20, 20));
+        results.add(detection(30, 10, 55, 40));
+        results.get(0).put("label_map", map);
+        results.get(1).put("label_map", map);
+        PostProcessing.scale_results(results, 2f, 2f);
+
+        assertSame(map, results.get(1).get("label_map"));
+        assertArrayEquals(new float[]{10, 0, 100, 80}, new float[]{map.x, map.y, map.width, map.height}, 1e-4f);
+        //the mask itself keeps its resolution
+        assertEquals(4, map.mask_width);
+    }
+
+    @Test
+    public void scale_results_leavesUnscaledResultsAlone() {
+        Map<String, Object> detection = detection(1.5f, 2.5f, 3.5f, 4.5f, 2, 3);
+        float[] box = (float[]) detection.get("box");
+        Map<String, Double> vertex = vertex(detection, 0);
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(detection);
+        PostProcessing.scale_results(results, 1f, 1f);
+        assertSame(box, detection.get("box"));
+        assertArrayEquals(new float[]{1.5f, 2.5f, 3.5f, 4.5f}, Arrays.copyOf(box, 4), 0f);
+        assertEquals(0.5, vertex.get("x"), 0);
+        assertEquals(0.5, vertex.get("y"), 0);
+    }
+}
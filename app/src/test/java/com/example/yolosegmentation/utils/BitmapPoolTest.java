@@ -0,0 +1,169 @@
+package com.example.yolosegmentation.utils;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BitmapPoolTest {
+    private MockedStatic<Bitmap> bitmaps;
+    private MockedStatic<SystemClock> clock;
+    private long uptime = 1000;
+    private BitmapPool pool;
+
+    //an ARGB_8888 bitmap as Bitmap.createBitmap would return it
+    private static Bitmap bitmap(int width, int height, boolean mutable) {
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getWidth()).thenReturn(width);
+        when(bitmap.getHeight()).thenReturn(height);
+        when(bitmap.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        when(bitmap.isMutable()).thenReturn(mutable);
+        when(bitmap.getAllocationByteCount()).thenReturn(width * height * 4);
+        return bitmap;
+    }
+
+    @Before
+    public void setUp() {
+        bitmaps = mockStatic(Bitmap.class);
+        bitmaps.when(() -> Bitmap.createBitmap(anyInt(), anyInt(), any(Bitmap.Config.class)))
+                .thenAnswer(call -> bitmap(call.getArgument(0), call.getArgument(1), true));
+        clock = mockStatic(SystemClock.class);
+        clock.when(SystemClock::uptimeMillis).thenAnswer(call -> uptime);
+        pool = new BitmapPool();
+    }
+
+    @After
+    public void tearDown() {
+        clock.close();
+        bitmaps.close();
+    }
+
+    @Test
+    public void acquire_reusesReleasedBitmapsOfTheSameSize() {
+        Bitmap first = pool.acquire(64, 48, Bitmap.Config.ARGB_8888);
+        pool.release(first);
+        assertSame(first, pool.acquire(64, 48, Bitmap.Config.ARGB_8888));
+        //the only idle one is out again
+        Bitmap second = pool.acquire(64, 48, Bitmap.Config.ARGB_8888);
+        assertNotSame(first, second);
+        assertNotSame(first, pool.acquire(48, 64, Bitmap.Config.ARGB_8888));
+        assertEquals(3, pool.getOutstanding());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_throwsOnTheSecondRelease() {
+        Bitmap bitmap = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        pool.release(bitmap);
+        pool.release(bitmap);
+    }
+
+    @Test
+    public void release_throwsForBitmapsFromElsewhere() {
+        Bitmap decoded = bitmap(8, 8, true);
+        try {
+            pool.release(decoded);
+            fail("released a bitmap the pool never owned");
+        } catch (IllegalStateException e) {
+            //nothing was recycled or pooled on the way
+            verify(decoded, never()).recycle();
+        }
+        //taken under the pool's rules it goes back like an acquired one
+        pool.release(pool.track(decoded));
+        assertSame(decoded, pool.acquire(8, 8, Bitmap.Config.ARGB_8888));
+        pool.release(null);
+    }
+
+    @Test
+    public void release_recyclesWhatItCantKeep() {
+        //room for one idle 16x16 bitmap
+        pool.setMaxBytes(16 * 16 * 4);
+        Bitmap kept = pool.acquire(16, 16, Bitmap.Config.ARGB_8888);
+        Bitmap over = pool.acquire(16, 16, Bitmap.Config.ARGB_8888);
+        Bitmap immutable = pool.track(bitmap(1, 1, false));
+        pool.release(kept);
+        pool.release(over);
+        pool.release(immutable);
+        verify(kept, never()).recycle();
+        verify(over).recycle();
+        verify(immutable).recycle();
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void setMaxBytes_recyclesIdleBitmaps() {
+        Bitmap idle = pool.acquire(16, 16, Bitmap.Config.ARGB_8888);
+        pool.release(idle);
+        pool.setMaxBytes(0);
+        verify(idle).recycle();
+        assertNotSame(idle, pool.acquire(16, 16, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void getProbableLeaks_countsBitmapsOutForSeconds() {
+        Bitmap old = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        uptime += 4000;
+        Bitmap recent = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        assertEquals(0, pool.getProbableLeaks());
+        uptime += 2000;
+        assertEquals(1, pool.getProbableLeaks());
+        pool.release(old);
+        pool.release(recent);
+        assertEquals(0, pool.getProbableLeaks());
+        assertEquals("bitmaps out 0 (max 2, leak 0) new 2 reused 0 recycled 0 idle 0MB",
+                pool.appendStats(new StringBuilder()).toString());
+    }
+
+    @Test
+    public void setMaxBytes_recyclesTheLeastRecentlyUsedSizesFirst() {
+        Bitmap large = pool.acquire(16, 16, Bitmap.Config.ARGB_8888);
+        Bitmap medium = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        Bitmap small = pool.acquire(4, 4, Bitmap.Config.ARGB_8888);
+        pool.release(large);
+        pool.release(medium);
+        pool.release(small);
+        //the medium size was used again, it goes last
+        pool.release(pool.acquire(8, 8, Bitmap.Config.ARGB_8888));
+
+        pool.setMaxBytes(8 * 8 * 4);
+        verify(large).recycle();
+        verify(small).recycle();
+        verify(medium, never()).recycle();
+        assertSame(medium, pool.acquire(8, 8, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void keep_leavesHeldBitmapsOutOfTheLeakCount() {
+        Bitmap shown = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        pool.keep(shown);
+        Bitmap forgotten = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        uptime += 60000;
+        assertEquals(1, pool.getProbableLeaks());
+        assertEquals(2, pool.getOutstanding());
+
+        //the mark goes with the release, the next holder of the bitmap is watched again
+        pool.release(shown);
+        assertSame(shown, pool.acquire(8, 8, Bitmap.Config.ARGB_8888));
+        uptime += 60000;
+        assertEquals(2, pool.getProbableLeaks());
+        pool.release(forgotten);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void keep_throwsForBitmapsNotOut() {
+        Bitmap bitmap = pool.acquire(8, 8, Bitmap.Config.ARGB_8888);
+        pool.release(bitmap);
+        pool.keep(bitmap);
+    }
+}
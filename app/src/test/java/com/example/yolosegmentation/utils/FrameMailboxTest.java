@@ -0,0 +1,92 @@
+package com.example.yolosegmentation.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameMailboxTest {
+    //runs posted tasks only when the test says so
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void run_all() {
+            while (!tasks.isEmpty()) tasks.poll().run();
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<String> handled = new ArrayList<>();
+
+    @Test
+    public void post_replacesTheWaitingFrame() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>(executor, handled::add);
+        assertNull(mailbox.post("frame 1"));
+        assertTrue(mailbox.isBusy());
+        //not picked up yet, the newer frame takes its place
+        assertEquals("frame 1", mailbox.post("frame 2"));
+        assertEquals("frame 2", mailbox.post("frame 3"));
+        assertEquals(1, executor.tasks.size());
+
+        executor.run_all();
+        assertEquals(Collections.singletonList("frame 3"), handled);
+        assertFalse(mailbox.isBusy());
+    }
+
+    @Test
+    public void post_startsTheConsumerAgainOnceIdle() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>(executor, handled::add);
+        mailbox.post("frame 1");
+        executor.run_all();
+        mailbox.post("frame 2");
+        assertEquals(1, executor.tasks.size());
+        executor.run_all();
+        assertEquals(Arrays.asList("frame 1", "frame 2"), handled);
+    }
+
+    @Test
+    public void drain_takesFramesPostedWhileHandling() {
+        final AtomicReference<FrameMailbox<String>> mailbox = new AtomicReference<>();
+        mailbox.set(new FrameMailbox<>(executor, frame -> {
+            handled.add(frame);
+            if (frame.equals("frame 1")) assertNull(mailbox.get().post("frame 2"));
+        }));
+        mailbox.get().post("frame 1");
+        executor.run_all();
+        //the running consumer picked it up, no second task was posted for it
+        assertEquals(Arrays.asList("frame 1", "frame 2"), handled);
+        assertFalse(mailbox.get().isBusy());
+    }
+
+    @Test
+    public void close_dropsTheWaitingFrameAndLaterPosts() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>(executor, handled::add);
+        mailbox.post("frame 1");
+        mailbox.close();
+        assertEquals("frame 2", mailbox.post("frame 2"));
+        executor.run_all();
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    public void post_handsTheFrameBackWhenTheExecutorRejectsIt() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>(task -> {
+            throw new RejectedExecutionException("shut down");
+        }, handled::add);
+        assertEquals("frame 1", mailbox.post("frame 1"));
+        assertFalse(mailbox.isBusy());
+    }
+}
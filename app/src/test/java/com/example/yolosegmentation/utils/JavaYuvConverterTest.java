@@ -0,0 +1,119 @@
+package com.example.yolosegmentation.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class JavaYuvConverterTest {
+    //the fixed point tables against BT.601 limited range in floating point, footroom luma as black
+    private static final int TOLERANCE = 2;
+
+    /**
+     * Planes of a random frame, padded past the width the way camera buffers often are.
+     */
+    private static YuvFrame frame(int width, int height, int uv_pixel_stride, long seed) {
+        Random random = new Random(seed);
+        int y_row_stride = width + 7;
+        int chroma_width = (width + 1) / 2;
+        int chroma_height = (height + 1) / 2;
+        int uv_row_stride = chroma_width * uv_pixel_stride + 5;
+        byte[] y = new byte[y_row_stride * height];
+        byte[] u = new byte[uv_row_stride * chroma_height];
+        byte[] v = new byte[uv_row_stride * chroma_height];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+        return new YuvFrame(width, height, y, u, v, y_row_stride, uv_row_stride, uv_pixel_stride);
+    }
+
+    private static int[] convert(YuvConverter converter, YuvFrame frame) {
+        Bitmap bitmap = mock(Bitmap.class);
+        converter.convert(frame, bitmap);
+        ArgumentCaptor<int[]> pixels = ArgumentCaptor.forClass(int[].class);
+        verify(bitmap).setPixels(pixels.capture(), eq(0), eq(frame.width), eq(0), eq(0),
+                eq(frame.width), eq(frame.height));
+        return pixels.getValue();
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static void assertMatchesReference(YuvFrame frame, int[] pixels) {
+        for (int row = 0; row < frame.height; row++) {
+            for (int col = 0; col < frame.width; col++) {
+                int uv = (row / 2) * frame.uv_row_stride + (col / 2) * frame.uv_pixel_stride;
+                double y = Math.max(0, 1.164 * ((frame.y[row * frame.y_row_stride + col] & 0xFF) - 16));
+                double u = (frame.u[uv] & 0xFF) - 128;
+                double v = (frame.v[uv] & 0xFF) - 128;
+                int pixel = pixels[row * frame.width + col];
+                String at = "pixel " + col + "," + row;
+                assertEquals(at, 0xFF, pixel >>> 24);
+                assertEquals(at, clamp(y + 1.596 * v), (pixel >> 16) & 0xFF, TOLERANCE);
+                assertEquals(at, clamp(y - 0.392 * u - 0.813 * v), (pixel >> 8) & 0xFF, TOLERANCE);
+                assertEquals(at, clamp(y + 2.017 * u), pixel & 0xFF, TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void convert_readsPlanarFrames() {
+        YuvFrame frame = frame(16, 8, 1, 1);
+        assertMatchesReference(frame, convert(new JavaYuvConverter(), frame));
+    }
+
+    @Test
+    public void convert_readsInterleavedChroma() {
+        YuvFrame frame = frame(16, 8, 2, 2);
+        assertMatchesReference(frame, convert(new JavaYuvConverter(), frame));
+    }
+
+    @Test
+    public void convert_handlesOddSizes() {
+        //the last column and row share chroma with nothing
+        YuvFrame frame = frame(7, 5, 2, 3);
+        assertMatchesReference(frame, convert(new JavaYuvConverter(), frame));
+    }
+
+    @Test
+    public void convert_clampsBlackAndWhite() {
+        YuvFrame frame = frame(2, 2, 1, 4);
+        //footroom below 16 and the extreme chroma corner
+        frame.y[0] = 0;
+        frame.y[1] = (byte) 255;
+        frame.u[0] = (byte) 255;
+        frame.v[0] = (byte) 255;
+        int[] pixels = convert(new JavaYuvConverter(), frame);
+        assertEquals(0xFF, (pixels[1] >> 16) & 0xFF);
+        assertEquals(0xFF, pixels[1] & 0xFF);
+        assertMatchesReference(frame, pixels);
+    }
+
+    @Test
+    public void convert_reusesItsBufferAcrossSizes() {
+        JavaYuvConverter converter = new JavaYuvConverter();
+        YuvFrame large = frame(16, 8, 2, 5);
+        YuvFrame small = frame(4, 4, 1, 6);
+        assertMatchesReference(large, convert(converter, large));
+        assertMatchesReference(small, convert(converter, small));
+        assertMatchesReference(large, convert(converter, large));
+    }
+
+    @Test
+    public void close_keepsTheConverterUsable() {
+        JavaYuvConverter converter = new JavaYuvConverter();
+        converter.close();
+        YuvFrame frame = frame(4, 2, 2, 7);
+        assertMatchesReference(frame, convert(converter, frame));
+        assertNotNull(converter.name());
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.yolosegmentation.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void empty_reportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanNanos());
+        assertEquals(0, histogram.getPercentileNanos(50));
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+
+    @Test
+    public void percentile_isTheMaxForOneSample() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3 * MS);
+        //the bucket bound is above the sample, the max caps it
+        assertEquals(3 * MS, histogram.getPercentileNanos(50));
+        assertEquals(3 * MS, histogram.getPercentileNanos(99));
+        assertEquals(3 * MS, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void percentile_isWithinABucketOfTheExactValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * MS);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500 * MS / 1000, histogram.getMeanNanos());
+        assertEquals(1000 * MS, histogram.getMaxNanos());
+        for (int percentile : new int[]{50, 90, 99}) {
+            long exact = percentile * 10 * MS;
+            long reported = histogram.getPercentileNanos(percentile);
+            //an upper bound, at most one 12% bucket above
+            assertTrue(percentile + ": " + reported, reported >= exact);
+            assertTrue(percentile + ": " + reported, reported <= exact * 1.12);
+        }
+    }
+
+    @Test
+    public void record_ignoresNegativeDurations() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void record_keepsDurationsPastTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long hour = TimeUnit.HOURS.toNanos(1);
+        histogram.record(hour);
+        assertEquals(1, histogram.getCount());
+        assertEquals(hour, histogram.getMaxNanos());
+        assertTrue(histogram.getPercentileNanos(100) > 0);
+    }
+
+    @Test
+    public void record_countsEverySampleAcrossThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long duration = (t + 1) * MS;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) histogram.record(duration);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(40000, histogram.getCount());
+        assertEquals(4 * MS, histogram.getMaxNanos());
+        assertEquals(25 * MS / 10, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5 * MS);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getPercentileNanos(50));
+    }
+
+    @Test
+    public void appendSummary_printsTenthsOfMillis() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(2 * MS);
+        assertEquals("2.0/2.0/2.0 max 2.0ms", histogram.appendSummary(new StringBuilder()).toString());
+        //rounded to the nearest tenth
+        assertEquals("1.3", LatencyHistogram.append_millis(new StringBuilder(), 1_250_000).toString());
+        assertEquals("0.0", LatencyHistogram.append_millis(new StringBuilder(), 40_000).toString());
+    }
+}
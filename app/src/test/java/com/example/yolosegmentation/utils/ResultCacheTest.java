@@ -0,0 +1,173 @@
+package com.example.yolosegmentation.utils;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+    private static final int SLOTS = 16;
+    private static final long MAX_DISK_BYTES = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final List<ResultCache> opened = new ArrayList<>();
+
+    @After
+    public void close() {
+        for (ResultCache cache : opened) cache.close();
+    }
+
+    //no memory tier, every get goes to the files
+    private ResultCache open_disk_only() {
+        return open(0, MAX_DISK_BYTES);
+    }
+
+    private ResultCache open(int memory_entries, long max_disk_bytes) {
+        ResultCache cache = new ResultCache(folder.getRoot(), memory_entries, SLOTS, max_disk_bytes);
+        opened.add(cache);
+        return cache;
+    }
+
+    //a person with a triangle around its box corner
+    private static List<Map<String, Object>> person(float x) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("box", new float[]{x, 2, x + 10, 20, 0.75f});
+        result.put("tag", "person");
+        List<Map<String, Double>> polygon = new ArrayList<>();
+        for (float[] point : new float[][]{{0, 0}, {10, 0}, {5, 18}}) {
+            Map<String, Double> vertex = new HashMap<>();
+            vertex.put("x", (double) point[0]);
+            vertex.put("y", (double) point[1]);
+            polygon.add(vertex);
+        }
+        result.put("polygons", polygon);
+        List<Map<String, Object>> results = new ArrayList<>();
+        results.add(result);
+        return results;
+    }
+
+    private static float left(List<Map<String, Object>> results) {
+        return ((float[]) results.get(0).get("box"))[0];
+    }
+
+    @Test
+    public void get_returnsACopyOfWhatWasPut() {
+        ResultCache cache = open(4, MAX_DISK_BYTES);
+        ResultCache.Key key = new ResultCache.Key(1, 2);
+        List<Map<String, Object>> put = person(3);
+        //label maps are not cached, untagged results come back with an empty tag
+        put.get(0).put("label_map", new Object());
+        Map<String, Object> untagged = new HashMap<>();
+        untagged.put("box", new float[]{0, 0, 1, 1, 0.5f});
+        put.add(untagged);
+        cache.put(key, put);
+
+        List<Map<String, Object>> first = cache.get(key);
+        assertEquals(2, first.size());
+        assertArrayEquals((float[]) put.get(0).get("box"), (float[]) first.get(0).get("box"), 0f);
+        assertEquals("person", first.get(0).get("tag"));
+        assertEquals(put.get(0).get("polygons"), first.get(0).get("polygons"));
+        assertFalse(first.get(0).containsKey("label_map"));
+        assertEquals("", first.get(1).get("tag"));
+        assertTrue(((List<?>) first.get(1).get("polygons")).isEmpty());
+
+        ((float[]) first.get(0).get("box"))[0] = 99;
+        assertEquals(3, left(cache.get(key)), 0f);
+        assertNull(cache.get(new ResultCache.Key(1, 3)));
+    }
+
+    @Test
+    public void key_of_separatesModelsVersionsAndThresholds() {
+        ResultCache.Key key = ResultCache.Key.of(7, "model2.tflite", "1024_1", 0.4f, 0.5f, 0.5f);
+        assertEquals(key, ResultCache.Key.of(7, "model2.tflite", "1024_1", 0.4f, 0.5f, 0.5f));
+        assertNotEquals(key, ResultCache.Key.of(8, "model2.tflite", "1024_1", 0.4f, 0.5f, 0.5f));
+        assertNotEquals(key, ResultCache.Key.of(7, "model3.tflite", "1024_1", 0.4f, 0.5f, 0.5f));
+        //the same model name after an app update replaced the file
+        assertNotEquals(key, ResultCache.Key.of(7, "model2.tflite", "1024_2", 0.4f, 0.5f, 0.5f));
+        assertNotEquals(key, ResultCache.Key.of(7, "model2.tflite", "1024_1", 0.45f, 0.5f, 0.5f));
+        assertNotEquals(key, ResultCache.Key.of(7, "model2.tflite", "1024_1", 0.4f, 0.5f, 0.6f));
+    }
+
+    @Test
+    public void get_probesPastCollidingKeys() {
+        ResultCache cache = open_disk_only();
+        ResultCache.Key first = new ResultCache.Key(1, 0);
+        ResultCache.Key second = null;
+        for (long content = 2; second == null; content++) {
+            ResultCache.Key candidate = new ResultCache.Key(content, 0);
+            if (cache.slot_of(candidate) == cache.slot_of(first)) second = candidate;
+        }
+        cache.put(first, person(1));
+        cache.put(second, person(2));
+        assertEquals(1, left(cache.get(first)), 0f);
+        assertEquals(2, left(cache.get(second)), 0f);
+
+        //replacing the second entry keeps it behind the first
+        cache.put(second, person(3));
+        assertEquals(1, left(cache.get(first)), 0f);
+        assertEquals(3, left(cache.get(second)), 0f);
+    }
+
+    @Test
+    public void get_readsEntriesWrittenBeforeAReopen() {
+        ResultCache.Key key = new ResultCache.Key(42, 7);
+        ResultCache cache = open(4, MAX_DISK_BYTES);
+        cache.put(key, person(5));
+        cache.close();
+
+        assertEquals(5, left(open_disk_only().get(key)), 0f);
+    }
+
+    @Test
+    public void get_missesRecordsCutShort() throws Exception {
+        ResultCache.Key kept = new ResultCache.Key(1, 1);
+        ResultCache.Key cut = new ResultCache.Key(2, 1);
+        ResultCache cache = open_disk_only();
+        cache.put(kept, person(1));
+        cache.put(cut, person(2));
+        cache.close();
+        //as if the process died while appending the last record
+        try (RandomAccessFile data = new RandomAccessFile(new File(folder.getRoot(), "data.bin"), "rw")) {
+            data.setLength(data.length() - 1);
+        }
+
+        cache = open_disk_only();
+        assertNull(cache.get(cut));
+        assertEquals(1, left(cache.get(kept)), 0f);
+    }
+
+    @Test
+    public void put_clearsTheDiskTierWhenTheDataFileIsFull() {
+        ResultCache.Key old_key = new ResultCache.Key(1, 1);
+        ResultCache.Key new_key = new ResultCache.Key(2, 1);
+        ResultCache cache = open_disk_only();
+        cache.put(old_key, person(1));
+        long record_bytes = new File(folder.getRoot(), "data.bin").length();
+        cache.close();
+
+        //room for one record only
+        cache = open(0, record_bytes + record_bytes / 2);
+        cache.put(new_key, person(2));
+        assertNull(cache.get(old_key));
+        assertEquals(2, left(cache.get(new_key)), 0f);
+    }
+
+    @Test
+    public void put_clearsTheDiskTierWhenTheIndexFillsUp() {
+        ResultCache cache = open_disk_only();
+        //cleared on the put after three quarters of the slots are used
+        for (int i = 0; i <= SLOTS * 3 / 4; i++) cache.put(new ResultCache.Key(i, 1), person(i));
+        assertNull(cache.get(new ResultCache.Key(0, 1)));
+        assertEquals(SLOTS * 3 / 4, left(cache.get(new ResultCache.Key(SLOTS * 3 / 4, 1))), 0f);
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.yolosegmentation.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TensorSamplerTest {
+    private static final int A = 0xFF0A0000;
+    private static final int B = 0xFF001400;
+    private static final int C = 0xFF00001E;
+    private static final int D = 0xFF282828;
+
+    //row major ARGB, read the way Bitmap.getPixels reads
+    private static class ArrayPixels implements TensorSampler.PixelSource {
+        final int[] argb;
+        final int width;
+        final int height;
+
+        ArrayPixels(int width, int height, int... argb) {
+            this.argb = argb;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(argb, (y + row) * this.width + x, pixels, offset + row * stride, width);
+            }
+        }
+    }
+
+    //tensor pixels back to RGB, for sources sampled at their own size with mean 0 and std 1
+    private static int[] rgb(ByteBuffer tensor, int count) {
+        int[] rgb = new int[count];
+        tensor.rewind();
+        for (int i = 0; i < count; i++) {
+            int r = Math.round(tensor.getFloat());
+            int g = Math.round(tensor.getFloat());
+            int b = Math.round(tensor.getFloat());
+            rgb[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+        return rgb;
+    }
+
+    @Test
+    public void sample_normalizesEachChannel() {
+        ArrayPixels source = new ArrayPixels(1, 1, 0xFF336699);
+        ByteBuffer tensor = TensorSampler.allocateInput(2, 2);
+        new TensorSampler().sample(source, 0, 0, 1, 1, tensor, 2, 2, 51, 2);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0f, tensor.getFloat(), 1e-6f);
+            assertEquals(25.5f, tensor.getFloat(), 1e-6f);
+            assertEquals(51f, tensor.getFloat(), 1e-6f);
+        }
+    }
+
+    @Test
+    public void sample_copiesARegionAtItsOwnSize() {
+        ArrayPixels source = new ArrayPixels(3, 3,
+                A, B, C,
+                D, A, B,
+                C, D, A);
+        ByteBuffer tensor = TensorSampler.allocateInput(2, 2);
+        new TensorSampler().sample(source, 1, 1, 2, 2, tensor, 2, 2, 0, 1);
+        assertArrayEquals(new int[]{A, B, D, A}, rgb(tensor, 4));
+    }
+
+    @Test
+    public void sample_turnsTheSourceClockwise() {
+        ArrayPixels source = new ArrayPixels(2, 2,
+                A, B,
+                C, D);
+        TensorSampler sampler = new TensorSampler();
+        ByteBuffer tensor = TensorSampler.allocateInput(2, 2);
+
+        sampler.sample(source, 90, 0, 0, 2, 2, tensor, 2, 2, 0, 1);
+        assertArrayEquals(new int[]{C, A, D, B}, rgb(tensor, 4));
+        sampler.sample(source, 180, 0, 0, 2, 2, tensor, 2, 2, 0, 1);
+        assertArrayEquals(new int[]{D, C, B, A}, rgb(tensor, 4));
+        sampler.sample(source, 270, 0, 0, 2, 2, tensor, 2, 2, 0, 1);
+        assertArrayEquals(new int[]{B, D, A, C}, rgb(tensor, 4));
+        //negative and full turns
+        sampler.sample(source, -90, 0, 0, 2, 2, tensor, 2, 2, 0, 1);
+        assertArrayEquals(new int[]{B, D, A, C}, rgb(tensor, 4));
+        sampler.sample(source, 360, 0, 0, 2, 2, tensor, 2, 2, 0, 1);
+        assertArrayEquals(new int[]{A, B, C, D}, rgb(tensor, 4));
+    }
+
+    @Test
+    public void sample_readsRotatedRegionsInUprightCoordinates() {
+        //a 3x2 sensor frame is 2x3 upright after a quarter turn
+        ArrayPixels source = new ArrayPixels(3, 2,
+                A, B, C,
+                D, A, B);
+        ByteBuffer tensor = TensorSampler.allocateInput(1, 2);
+        //upright it reads D A / A B / B C, take the bottom two rows of the right column
+        new TensorSampler().sample(source, 90, 1, 1, 1, 2, tensor, 1, 2, 0, 1);
+        assertArrayEquals(new int[]{B, C}, rgb(tensor, 2));
+    }
+
+    @Test
+    public void sample_resizesRotatedRegionsLikeUprightOnes() {
+        int width = 29;
+        int height = 17;
+        Random random = new Random(7);
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xFF000000 | random.nextInt(0x1000000);
+        ArrayPixels source = new ArrayPixels(width, height, argb);
+        TensorSampler sampler = new TensorSampler();
+        ByteBuffer rotated_read = TensorSampler.allocateInput(12, 10);
+        ByteBuffer upright_read = TensorSampler.allocateInput(12, 10);
+        for (int rotation = 90; rotation < 360; rotation += 90) {
+            //the same pixels turned clockwise by hand
+            boolean swap = rotation != 180;
+            int upright_width = swap ? height : width;
+            int[] upright = new int[argb.length];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int ux = rotation == 90 ? height - 1 - y : (rotation == 180 ? width - 1 - x : y);
+                    int uy = rotation == 90 ? x : (rotation == 180 ? height - 1 - y : width - 1 - x);
+                    upright[uy * upright_width + ux] = argb[y * width + x];
+                }
+            }
+            ArrayPixels turned = new ArrayPixels(upright_width, swap ? width : height, upright);
+            //a region off every edge, downscaled on one axis and upscaled on the other
+            sampler.sample(source, rotation, 2, 3, 13, 8, rotated_read, 12, 10, 127.5f, 127.5f);
+            sampler.sample(turned, 2, 3, 13, 8, upright_read, 12, 10, 127.5f, 127.5f);
+            rotated_read.rewind();
+            upright_read.rewind();
+            while (upright_read.hasRemaining()) {
+                assertEquals("rotation " + rotation, upright_read.getFloat(), rotated_read.getFloat(), 1e-5f);
+            }
+        }
+    }
+}
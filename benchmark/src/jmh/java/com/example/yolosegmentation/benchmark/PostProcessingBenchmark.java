@@ -0,0 +1,137 @@
+package com.example.yolosegmentation.benchmark;
+
+import com.example.yolosegmentation.models.PostProcessing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark per post-processing stage of {@code Yolov8Seg.detect_task}, plus the whole chain,
+ * over synthetic outputs (see {@link SyntheticOutputs}). Every stage gets the input the previous
+ * one produces for the same parameters, so the numbers add up to {@link #full_frame}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PostProcessingBenchmark {
+    private static final int INPUT_SIZE = 640;
+    private static final int[] INPUT_SHAPE = {1, INPUT_SIZE, INPUT_SIZE, 3};
+    private static final int SOURCE_WIDTH = 1280;
+    private static final int SOURCE_HEIGHT = 720;
+    private static final float IOU = 0.45f;
+    private static final float CONF = 0.25f;
+    private static final float CLASS = 0.25f;
+    private static final float SEG_THRESHOLD = PostProcessing.SEG_THRESHOLD;
+
+    //anchors scoring above the class threshold
+    @Param({"10", "100", "1000"})
+    public int candidates;
+
+    //object side, as a fraction of the input
+    @Param({"0.05", "0.2", "0.5"})
+    public float object_size;
+
+    //anchors firing on the same object
+    @Param({"5"})
+    public int duplicates;
+
+    private SyntheticOutputs outputs;
+    private List<float[]> sorted_candidates;
+    private List<float[]> kept;
+    private List<float[]> restored;
+    private float[][] restore_scratch;
+    private List<float[]> restore_input;
+    private List<byte[]> masks;
+    private List<List<Map<String, Double>>> polygons;
+
+    @Setup
+    public void setup() {
+        nu.pattern.OpenCV.loadLocally();
+        outputs = new SyntheticOutputs(candidates, object_size, duplicates, 42);
+
+        //everything above the threshold, sorted, before NMS
+        sorted_candidates = PostProcessing.filter_seg_boxes(outputs.output0, 1.1f, CONF, CLASS,
+                INPUT_SIZE, INPUT_SIZE);
+        kept = PostProcessing.filter_seg_boxes(outputs.output0, IOU, CONF, CLASS,
+                INPUT_SIZE, INPUT_SIZE);
+
+        restore_scratch = new float[kept.size()][];
+        restore_input = new ArrayList<>();
+        for (int i = 0; i < kept.size(); i++) {
+            restore_scratch[i] = kept.get(i).clone();
+            restore_input.add(restore_scratch[i]);
+        }
+        restored = new ArrayList<>();
+        for (float[] box : kept) restored.add(box.clone());
+        PostProcessing.restore_size(restored, INPUT_SIZE, INPUT_SIZE, SOURCE_WIDTH, SOURCE_HEIGHT, true);
+
+        masks = new ArrayList<>();
+        polygons = new ArrayList<>();
+        for (float[] box : restored) {
+            byte[] mask = PostProcessing.compute_mask(box, outputs.output1[0], SEG_THRESHOLD,
+                    SyntheticOutputs.MASK_SIZE, SyntheticOutputs.MASK_SIZE);
+            masks.add(mask);
+            polygons.add(PostProcessing.mask_to_polygon(mask, SyntheticOutputs.MASK_SIZE,
+                    SyntheticOutputs.MASK_SIZE, box, SOURCE_HEIGHT, SOURCE_WIDTH));
+        }
+    }
+
+    @Benchmark
+    public List<float[]> filter_box() {
+        return PostProcessing.filter_seg_boxes(outputs.output0, IOU, CONF, CLASS, INPUT_SIZE, INPUT_SIZE);
+    }
+
+    @Benchmark
+    public List<float[]> nms() {
+        return PostProcessing.nms(sorted_candidates, IOU);
+    }
+
+    @Benchmark
+    public List<float[]> restore_size() {
+        //restore_size works in place, reset the boxes first (a few array copies)
+        for (int i = 0; i < restore_scratch.length; i++) {
+            System.arraycopy(kept.get(i), 0, restore_scratch[i], 0, 4);
+        }
+        return PostProcessing.restore_size(restore_input, INPUT_SIZE, INPUT_SIZE,
+                SOURCE_WIDTH, SOURCE_HEIGHT, true);
+    }
+
+    @Benchmark
+    public void compute_mask(Blackhole blackhole) {
+        for (float[] box : restored) {
+            blackhole.consume(PostProcessing.compute_mask(box, outputs.output1[0], SEG_THRESHOLD,
+                    SyntheticOutputs.MASK_SIZE, SyntheticOutputs.MASK_SIZE));
+        }
+    }
+
+    @Benchmark
+    public void mask_to_polygon(Blackhole blackhole) {
+        for (int i = 0; i < restored.size(); i++) {
+            blackhole.consume(PostProcessing.mask_to_polygon(masks.get(i), SyntheticOutputs.MASK_SIZE,
+                    SyntheticOutputs.MASK_SIZE, restored.get(i), SOURCE_HEIGHT, SOURCE_WIDTH));
+        }
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> build_results() {
+        return PostProcessing.build_results(restored, polygons, outputs.labels);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> full_frame() {
+        return PostProcessing.segment(outputs.output0, outputs.output1, INPUT_SHAPE,
+                SOURCE_HEIGHT, SOURCE_WIDTH, IOU, CONF, CLASS, true, outputs.labels);
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.yolosegmentation.benchmark;
+
+import com.example.yolosegmentation.models.TensorRecorder;
+import com.example.yolosegmentation.models.TensorReplay;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Post-processing of recorded frames, cycling through the capture given with
+ * {@code -Preplay.file=capture.bin}. Without one, a capture of synthetic frames is written first,
+ * which also keeps the recorder and the reader exercised.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+    private TensorReplay replay;
+    private TensorReplay.Frame[] frames;
+    private File synthetic_file;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        nu.pattern.OpenCV.loadLocally();
+        String path = System.getProperty("replay.file");
+        File file;
+        if (path != null) {
+            file = new File(path);
+        } else {
+            synthetic_file = File.createTempFile("replay", ".bin");
+            write_synthetic_capture(synthetic_file);
+            file = synthetic_file;
+        }
+        replay = new TensorReplay(file);
+        if (replay.size() == 0) {
+            throw new Exception("no frames in " + file);
+        }
+        frames = new TensorReplay.Frame[replay.size()];
+        for (int i = 0; i < frames.length; i++) frames[i] = replay.get(i);
+    }
+
+    @TearDown
+    public void tear_down() throws Exception {
+        replay.close();
+        if (synthetic_file != null && !synthetic_file.delete()) synthetic_file.deleteOnExit();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> replay_frame() throws Exception {
+        TensorReplay.Frame frame = frames[next];
+        next = (next + 1) % frames.length;
+        return TensorReplay.run(frame, null);
+    }
+
+    static void write_synthetic_capture(File file) throws Exception {
+        int[] input_shape = {1, 640, 640, 3};
+        ByteBuffer input = ByteBuffer.allocateDirect(640 * 640 * 3 * 4).order(ByteOrder.nativeOrder());
+        try (TensorRecorder recorder = new TensorRecorder(file)) {
+            int[][] sizes = {{10, 5}, {100, 20}, {1000, 5}, {100, 50}};
+            for (int[] size : sizes) {
+                SyntheticOutputs outputs = new SyntheticOutputs(size[0], size[1] / 100f, 5, size[0]);
+                Map<Integer, Object> tensors = new HashMap<>();
+                tensors.put(0, outputs.output0);
+                tensors.put(1, outputs.output1);
+                int[][] output_shapes = {
+                        {1, outputs.output0[0].length, SyntheticOutputs.ANCHORS},
+                        {1, SyntheticOutputs.MASK_SIZE, SyntheticOutputs.MASK_SIZE, 32}};
+                recorder.capture(1);
+                if (recorder.should_record()) {
+                    recorder.record(input, input_shape, tensors, output_shapes, 720, 1280,
+                            0.45f, 0.25f, 0.25f, true, "synthetic candidates=" + size[0]);
+                }
+            }
+        }
+    }
+}
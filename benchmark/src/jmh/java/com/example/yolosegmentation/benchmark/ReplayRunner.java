@@ -0,0 +1,111 @@
+package com.example.yolosegmentation.benchmark;
+
+import com.example.yolosegmentation.models.TensorReplay;
+import com.example.yolosegmentation.utils.JvmAllocationCounter;
+import com.example.yolosegmentation.utils.StageTimer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Replays a capture written by the app's TensorRecorder and prints the detections of every frame,
+ * one line per detection, plus the post-processing time. The detection lines don't depend on the
+ * machine, so the output of two builds can be diffed to catch post-processing regressions.
+ *
+ * With {@code --alloc-budget=bytes} the capture is replayed several times with allocation
+ * accounting in strict mode: once the first pass warmed things up, any decode, NMS, mask or
+ * contour stage allocating more than the budget in a frame fails the run.
+ *
+ * Usage: ReplayRunner capture.bin [labels.txt] [--alloc-budget=bytes] [--passes=n]
+ */
+public class ReplayRunner {
+    private static final StageTimer.Stage[] BUDGETED_STAGES = {
+            StageTimer.Stage.DECODE, StageTimer.Stage.NMS, StageTimer.Stage.MASK, StageTimer.Stage.CONTOUR};
+
+    public static void main(String[] args) throws Exception {
+        String capture = null;
+        String labels_path = null;
+        long budget = -1;
+        int passes = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--alloc-budget=")) {
+                budget = Long.parseLong(arg.substring("--alloc-budget=".length()));
+                passes = Math.max(passes, 3);
+            } else if (arg.startsWith("--passes=")) {
+                passes = Integer.parseInt(arg.substring("--passes=".length()));
+            } else if (capture == null) {
+                capture = arg;
+            } else {
+                labels_path = arg;
+            }
+        }
+        if (capture == null) {
+            System.err.println("usage: ReplayRunner capture.bin [labels.txt] [--alloc-budget=bytes] [--passes=n]");
+            System.exit(2);
+        }
+        nu.pattern.OpenCV.loadLocally();
+        Vector<String> labels = null;
+        if (labels_path != null) {
+            labels = new Vector<>(Files.readAllLines(new File(labels_path).toPath(), StandardCharsets.UTF_8));
+        }
+
+        try (TensorReplay replay = new TensorReplay(new File(capture))) {
+            StageTimer timer = StageTimer.getInstance();
+            timer.setEnabled(true);
+            if (budget >= 0) {
+                JvmAllocationCounter counter = JvmAllocationCounter.create();
+                if (counter == null) {
+                    System.err.println("this JVM doesn't expose thread allocation counters");
+                    System.exit(2);
+                }
+                timer.setAllocationCounter(counter);
+                timer.setStrict(true);
+                for (StageTimer.Stage stage : BUDGETED_STAGES) {
+                    timer.setAllocationBudget(stage, budget, replay.size());
+                }
+            }
+
+            long[] times = new long[replay.size()];
+            for (int pass = 0; pass < passes; pass++) {
+                //detections are printed once, later passes only exercise the budget
+                boolean print = pass == 0;
+                for (int i = 0; i < replay.size(); i++) {
+                    TensorReplay.Frame frame = replay.get(i);
+                    long start = System.nanoTime();
+                    List<Map<String, Object>> detections;
+                    try {
+                        detections = TensorReplay.run(frame, labels);
+                    } catch (StageTimer.AllocationBudgetExceededException e) {
+                        System.err.println("frame " + i + " pass " + pass + ": " + e.getMessage());
+                        System.err.print(timer.report());
+                        System.exit(1);
+                        return;
+                    }
+                    times[i] = (System.nanoTime() - start) / 1000;
+                    if (!print) continue;
+
+                    System.out.println(String.format(Locale.ROOT, "frame %d %dx%d %s: %d detections",
+                            i, frame.source_width, frame.source_height, frame.metadata, detections.size()));
+                    for (Map<String, Object> detection : detections) {
+                        float[] box = (float[]) detection.get("box");
+                        List<?> polygon = (List<?>) detection.get("polygons");
+                        System.out.println(String.format(Locale.ROOT, "  %s %.3f [%.1f %.1f %.1f %.1f] %d points",
+                                detection.get("tag"), box[4], box[0], box[1], box[2], box[3], polygon.size()));
+                    }
+                }
+            }
+            if (times.length > 0) {
+                Arrays.sort(times);
+                System.err.println(String.format(Locale.ROOT, "%d frames, post-processing p50 %dus max %dus",
+                        times.length, times[times.length / 2], times[times.length - 1]));
+            }
+            System.err.print(timer.report());
+        }
+    }
+}
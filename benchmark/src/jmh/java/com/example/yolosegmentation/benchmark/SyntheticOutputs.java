@@ -0,0 +1,89 @@
+package com.example.yolosegmentation.benchmark;
+
+import com.example.yolosegmentation.models.PostProcessing;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Deterministic YOLOv8-seg output tensors shaped like the TFLite export:
+ * output0 [1, 4 + classes + 32, anchors] with normalized xywh, output1 [1, mask_h, mask_w, 32].
+ *
+ * {@code candidates} anchors score above the class threshold. They are spread over
+ * {@code candidates / duplicates} objects, each detected by several jittered anchors the way a
+ * real model fires neighbouring cells, so NMS has work to do. Every object is a square
+ * {@code object_size} of the input wide and its mask is a disc in prototype 0, which the mask
+ * weights of its anchors select, so contours look like real blobs rather than noise.
+ */
+public class SyntheticOutputs {
+    public static final int ANCHORS = 8400;
+    public static final int CLASSES = 80;
+    public static final int MASK_SIZE = 160;
+
+    public final float[][][] output0;
+    public final float[][][][] output1;
+    public final Vector<String> labels = new Vector<>();
+
+    public SyntheticOutputs(int candidates, float object_size, int duplicates, long seed) {
+        Random random = new Random(seed);
+        int rows = 4 + CLASSES + PostProcessing.MASK_WEIGHTS;
+        output0 = new float[1][rows][ANCHORS];
+        output1 = new float[1][MASK_SIZE][MASK_SIZE][PostProcessing.MASK_WEIGHTS];
+        for (int i = 0; i < CLASSES; i++) labels.add("class" + i);
+
+        //background anchors: small boxes with low scores
+        for (int i = 0; i < ANCHORS; i++) {
+            output0[0][0][i] = random.nextFloat();
+            output0[0][1][i] = random.nextFloat();
+            output0[0][2][i] = 0.02f;
+            output0[0][3][i] = 0.02f;
+            for (int c = 0; c < CLASSES; c++) {
+                output0[0][4 + c][i] = random.nextFloat() * 0.1f;
+            }
+        }
+
+        int objects = Math.max(1, candidates / Math.max(1, duplicates));
+        float[][] centers = new float[objects][2];
+        float half = object_size / 2f;
+        for (int o = 0; o < objects; o++) {
+            centers[o][0] = half + random.nextFloat() * Math.max(0f, 1f - object_size);
+            centers[o][1] = half + random.nextFloat() * Math.max(0f, 1f - object_size);
+        }
+
+        int stride = Math.max(1, ANCHORS / Math.max(1, candidates));
+        for (int k = 0; k < candidates && k * stride < ANCHORS; k++) {
+            int i = k * stride;
+            float[] center = centers[k % objects];
+            float jitter = object_size * 0.05f;
+            output0[0][0][i] = center[0] + (random.nextFloat() - 0.5f) * jitter;
+            output0[0][1][i] = center[1] + (random.nextFloat() - 0.5f) * jitter;
+            output0[0][2][i] = object_size * (0.95f + random.nextFloat() * 0.1f);
+            output0[0][3][i] = object_size * (0.95f + random.nextFloat() * 0.1f);
+            output0[0][4 + random.nextInt(CLASSES)][i] = 0.5f + random.nextFloat() * 0.5f;
+            int mask_row = 4 + CLASSES;
+            output0[0][mask_row][i] = 1f;
+            for (int m = 1; m < PostProcessing.MASK_WEIGHTS; m++) {
+                output0[0][mask_row + m][i] = (random.nextFloat() - 0.5f) * 0.1f;
+            }
+        }
+
+        //prototype 0 is positive inside every object disc, the others are low amplitude noise
+        for (int y = 0; y < MASK_SIZE; y++) {
+            for (int x = 0; x < MASK_SIZE; x++) {
+                float[] protos = output1[0][y][x];
+                protos[0] = -4f;
+                for (float[] center : centers) {
+                    float dx = (x + 0.5f) / MASK_SIZE - center[0];
+                    float dy = (y + 0.5f) / MASK_SIZE - center[1];
+                    if (dx * dx + dy * dy < half * half) {
+                        protos[0] = 4f;
+                        break;
+                    }
+                }
+                for (int m = 1; m < PostProcessing.MASK_WEIGHTS; m++) {
+                    protos[m] = random.nextFloat() - 0.5f;
+                }
+            }
+        }
+    }
+}